@@ -0,0 +1,155 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Classe che raccoglie le costanti e le funzioni di codifica del protocollo binario, alternativo a quello testuale.
+ * Il client lo richiede inviando MAGIC appena connesso; il server risponde con gli stessi byte.
+ * Da quel momento ogni richiesta e ogni risposta è un frame: [lunghezza u16][payload].
+ * - richiesta: [codice comando u8 (vedi Command)] seguito dagli argomenti, ognuno come [lunghezza u8][byte UTF-8]
+ * - risposta:  [codice esito u8] seguito da un eventuale payload che dipende dall'esito (vedi ReplyWriter)
+ * Il client può inviare più richieste di seguito senza attendere le risposte (pipelining): il server le elabora in ordine
+ * e scrive le risposte con un'unica scrittura sulla socket per ogni gruppo di richieste ricevute insieme.
+ * Dopo il comando SUBSCRIBE il server può inviare in qualsiasi momento, tra una risposta e l'altra, frame NOTIFICATION
+ * con i risultati condivisi dagli altri utenti (vedi NotificationHub).
+ * Gli indizi sono impacchettati a 2 bit per lettera (X = 0, ? = 1, + = 2), 4 lettere per byte.
+ */
+public class BinaryProtocol {
+
+    public static final byte[] MAGIC = {0x00, 'W', 'B', 0x01}; // un comando testuale non inizia mai con il byte 0
+    public static final int MAX_FRAME_LENGTH = 0xFFFF;
+
+    // Codici degli esiti, indice nell'array ReplyWriter.STATUS_NAMES per il protocollo testuale
+    public static final int SUCCESS = 0;
+    public static final int DUPLICATE = 1;
+    public static final int EMPTY = 2;
+    public static final int NON_EXISTING_USER = 3;
+    public static final int WRONG_PASSWORD = 4;
+    public static final int ALREADY_LOGGED = 5;
+    public static final int ERROR = 6;
+    public static final int ALREADY_PLAYED = 7;
+    public static final int ALREADY_WON = 8;
+    public static final int MAX_ATTEMPTS = 9;
+    public static final int NOT_IN_VOCABULARY = 10;
+    public static final int WIN = 11; // payload: [tentativi u8]
+    public static final int CLUE = 12; // payload: [tentativi rimasti u8][lettere u8][indizi impacchettati]
+    public static final int LOSE = 13; // payload: [lettere u8][indizi impacchettati][lunghezza u8][secret word]
+    public static final int STATISTICS = 14; // payload: [giocate u32][vinte u32][streak corrente u32][streak massima u32][n u8][vittorie con 1..n tentativi, n x u32]
+    public static final int UNKNOWN_COMMAND = 15;
+    public static final int NOTIFICATION = 16; // payload: un record ShareRecord; inviato dal server senza una richiesta, dopo SUBSCRIBE
+    public static final int SHARING = 17; // payload: [numero di sequenza u64][n u8][n record ShareRecord]
+    public static final int TOO_LONG = 18; // username o password più lunghi di User.MAX_FIELD_BYTES
+    public static final int NOT_LOGGED = 19; // comando che richiede il login inviato prima del login sulla connessione
+
+    private static final char[] MARKS = {'X', '?', '+'};
+
+    /**
+     * Metodo che restituisce il codice a 2 bit corrispondente a un simbolo di indizio
+     * @param mark Il simbolo ('X', '?' o '+')
+     * @return     Il codice del simbolo
+     */
+    public static int markCode(byte mark) {
+        return mark == '+' ? 2 : (mark == '?' ? 1 : 0);
+    }
+
+    /**
+     * Metodo che codifica una richiesta in un frame, da usare lato client
+     * @param frames Lo stream su cui accodare il frame (più frame possono essere inviati con un'unica scrittura)
+     * @param op     Il codice del comando (vedi Command)
+     * @param args   Gli argomenti del comando
+     */
+    public static void encodeRequest(ByteArrayOutputStream frames, int op, String... args) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(op);
+        for (String arg : args) {
+            byte[] bytes = arg.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFF) {
+                throw new IllegalArgumentException("argomento troppo lungo: " + arg);
+            }
+            payload.write(bytes.length);
+            payload.write(bytes, 0, bytes.length);
+        }
+        if (payload.size() > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("richiesta troppo lunga");
+        }
+        frames.write(payload.size() >>> 8);
+        frames.write(payload.size());
+        frames.write(payload.toByteArray(), 0, payload.size());
+    }
+
+    /**
+     * Metodo che legge un frame di risposta e lo converte nella risposta equivalente del protocollo testuale, da usare lato client
+     * @param in Lo stream associato alla socket
+     * @return   La risposta nel formato testuale (e.g: "CLUE: [X, ?, ...], hai a disposizione 11 tentativi.")
+     * @throws IOException se si verifica un errore nella lettura o il frame è malformato
+     */
+    public static String readReplyAsText(DataInputStream in) throws IOException {
+        byte[] frame = new byte[in.readUnsignedShort()];
+        in.readFully(frame);
+        int code = frame[0] & 0xFF;
+        int pos = 1;
+        switch (code) {
+            case WIN:
+                return "WIN: Hai indovinato la secret word in " + (frame[pos] & 0xFF) + " tentativi!";
+            case CLUE:
+                int remaining = frame[pos++] & 0xFF;
+                return "CLUE: " + unpackClue(frame, pos) + ", hai a disposizione " + remaining + " tentativi.";
+            case LOSE:
+                int letters = frame[pos] & 0xFF;
+                String clue = unpackClue(frame, pos);
+                pos += 1 + (letters + 3) / 4;
+                String secretWord = new String(frame, pos + 1, frame[pos] & 0xFF, StandardCharsets.UTF_8);
+                return "LOSE: " + clue + ", la secret word era " + secretWord + ". Grazie per aver giocato!";
+            case STATISTICS:
+                ByteBuffer stats = ByteBuffer.wrap(frame, pos, frame.length - pos);
+                int played = stats.getInt(), won = stats.getInt(), current = stats.getInt(), longest = stats.getInt();
+                int[] guesses = new int[stats.get() & 0xFF];
+                for (int i = 0; i < guesses.length; i++) {
+                    guesses[i] = stats.getInt();
+                }
+                return UserStats.format(played, won, current, longest, Arrays.toString(guesses));
+            case NOTIFICATION:
+                List<String> notification = new ArrayList<>(1);
+                ShareRecord.decodeRecord(frame, pos, frame.length, notification);
+                return ReplyWriter.NOTIFICATION_PREFIX + (notification.isEmpty() ? "" : notification.get(0));
+            case SHARING:
+                long cursor = ByteBuffer.wrap(frame, pos, 8).getLong();
+                pos += 8;
+                int count = frame[pos++] & 0xFF;
+                List<String> shared = new ArrayList<>(count);
+                while (shared.size() < count && pos < frame.length) {
+                    pos = ShareRecord.decodeRecord(frame, pos, frame.length, shared);
+                }
+                StringBuilder reply = new StringBuilder(ReplyWriter.SHARING_PREFIX).append(cursor).append(':').append(shared.size());
+                for (String notification_msg : shared) {
+                    reply.append('\n').append(notification_msg);
+                }
+                return reply.toString();
+            default:
+                if (code >= ReplyWriter.STATUS_NAMES.length) {
+                    throw new IOException("codice di risposta sconosciuto: " + code);
+                }
+                return ReplyWriter.STATUS_NAMES[code];
+        }
+    }
+
+    // Converte gli indizi impacchettati a partire da pos ([lettere u8][indizi]) nella forma testuale "[X, ?, +, ...]"
+    private static String unpackClue(byte[] frame, int pos) {
+        int letters = frame[pos] & 0xFF;
+        char[] clue = new char[letters];
+        for (int i = 0; i < letters; i++) {
+            int packed = frame[pos + 1 + i / 4] & 0xFF;
+            clue[i] = MARKS[(packed >>> (2 * (i % 4))) & 0x3];
+        }
+        return Arrays.toString(clue);
+    }
+}
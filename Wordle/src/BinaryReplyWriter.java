@@ -0,0 +1,114 @@
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Codifica delle risposte nel protocollo binario: un frame [lunghezza u16][codice esito u8][payload] per risposta (vedi BinaryProtocol).
+ */
+public class BinaryReplyWriter extends ReplyWriter {
+
+    private int frameStart; // posizione nel buffer del frame in costruzione
+
+    @Override
+    public void status(int code) {
+        beginFrame(code);
+        endFrame();
+    }
+
+    @Override
+    public void win(int attempts) {
+        beginFrame(BinaryProtocol.WIN);
+        put(attempts);
+        endFrame();
+    }
+
+    @Override
+    public void clue(byte[] clue, int letters, int remaining) {
+        beginFrame(BinaryProtocol.CLUE);
+        put(remaining);
+        putPackedClue(clue, letters);
+        endFrame();
+    }
+
+    @Override
+    public void lose(byte[] clue, int letters, String secretWord) {
+        beginFrame(BinaryProtocol.LOSE);
+        putPackedClue(clue, letters);
+        byte[] word = secretWord.getBytes(StandardCharsets.UTF_8);
+        put(word.length);
+        put(word);
+        endFrame();
+    }
+
+    @Override
+    public void statistics(User user) {
+        put(user.getStats().binaryReply()); // frame già codificato, riusato finchè le statistiche non cambiano
+    }
+
+    @Override
+    public void unknownCommand() {
+        // nel protocollo binario ogni richiesta riceve una risposta, per mantenere la corrispondenza con le richieste in pipeline
+        status(BinaryProtocol.UNKNOWN_COMMAND);
+    }
+
+    @Override
+    public void notification(ShareRecord record) {
+        beginFrame(BinaryProtocol.NOTIFICATION);
+        put(record.getBytes());
+        endFrame();
+    }
+
+    @Override
+    public void sharing(long cursor, List<ShareRecord> records) {
+        beginFrame(BinaryProtocol.SHARING);
+        putInt((int) (cursor >>> 32));
+        putInt((int) cursor);
+        put(records.size());
+        for (ShareRecord record : records) {
+            put(record.getBytes());
+        }
+        endFrame();
+    }
+
+    /**
+     * Metodo che scrive la risposta all'handshake con cui il client ha richiesto il protocollo binario
+     */
+    public void handshake() {
+        put(BinaryProtocol.MAGIC);
+    }
+
+    private void beginFrame(int code) {
+        frameStart = size;
+        put(0); // lunghezza, scritta in endFrame
+        put(0);
+        put(code);
+    }
+
+    private void endFrame() {
+        int length = size - frameStart - 2;
+        buf[frameStart] = (byte) (length >>> 8);
+        buf[frameStart + 1] = (byte) length;
+    }
+
+    private void putInt(int value) {
+        put(value >>> 24);
+        put(value >>> 16);
+        put(value >>> 8);
+        put(value);
+    }
+
+    // Scrive [lettere u8] seguito dagli indizi a 2 bit per lettera
+    private void putPackedClue(byte[] clue, int letters) {
+        put(letters);
+        for (int i = 0; i < letters; i += 4) {
+            int packed = 0;
+            for (int j = i; j < Math.min(i + 4, letters); j++) {
+                packed |= BinaryProtocol.markCode(clue[j]) << (2 * (j - i));
+            }
+            put(packed);
+        }
+    }
+}
@@ -0,0 +1,491 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Classe che mantiene lo stato della sessione di gioco di un client e che elabora i comandi ricevuti
+ * (REGISTER, LOGIN, LOGOUT, PLAYWORDLE, SENDWORD, SENDMESTATISTICS, SUBSCRIBE, SHOWMESHARING, SHARE).
+ * E' indipendente dal modo in cui i byte arrivano dalla rete, in modo da poter essere usata sia dal ClientHandler
+ * (un thread per connessione) sia dal NioReactor (selector non bloccante).
+ * Il protocollo (testuale o binario, vedi BinaryProtocol) viene stabilito in base ai primi byte inviati dal client.
+ * Dopo SUBSCRIBE la sessione riceve le notifiche di condivisione in una coda limitata (push), che il thread della connessione
+ * svuota nelle risposte (drainPushes) quando non ha altro da inviare al client.
+ * La risposta a un comando che modifica un utente viene accodata solo quando la modifica è su disco (vedi UserJournal),
+ * e se la scrittura nel journal fallisce il client riceve ERROR invece della risposta:
+ * il thread di un ClientHandler attende, mentre con un listener impostato (NioReactor) la sessione trattiene la risposta
+ * e i comandi successivi finchè il journal non la notifica, senza bloccare il thread che serve le altre connessioni.
+ */
+public class ClientSession {
+
+    public static final int MAX_REQUEST_LENGTH = 128 * 1024; // oltre questa lunghezza un comando è considerato malformato e la connessione viene chiusa
+
+    // Protocollo usato dal client
+    private static final int PROTOCOL_UNKNOWN = 0; // non ancora ricevuto alcun byte
+    private static final int PROTOCOL_TEXT = 1;
+    private static final int PROTOCOL_BINARY = 2;
+
+    private int client_id; // per poter identificare il client connesso nelle stampe sulla CLI del server
+    private boolean is_playing = false; // usato per gestire il logout una volta iniziata una partita
+    private boolean has_won = false;  // usato per impedire il proseguo di una partita quando si è conclusa perchè indovinata la secret word
+    private User connectedUser; // inizialmente un utente fittizio, dopo il login sarà l'utente autenticato
+    private boolean logged_out = false; // flag per andare a terminare la comunicazione con il client una volta effettuato il logout
+
+    private int userAttempts; // ogni tentativo da parte dell'utente di indovinare la secret word comporta un incremento del contatore
+    private final int MAX_ATTEMPTS = User.MAX_ATTEMPTS;
+    private Round round; // il turno della partita in corso: parola segreta che il client deve indovinare e cache degli indizi
+    private int letters; // lunghezza della secret word della partita in corso
+    private final byte[] grid = new byte[ShareRecord.GRID_BYTES]; // indizi dei tentativi della partita in corso, per la condivisione del risultato
+
+    private int protocol = PROTOCOL_UNKNOWN;
+    private final Command command = new Command(); // riusato per tutti i comandi ricevuti dal client
+    private ReplyWriter replies = new TextReplyWriter(); // risposte non ancora inviate al client
+    private final byte[] clue = new byte[PackedWord.MAX_LETTERS]; // buffer riusato per gli indizi relativi a una guessed word
+
+    private final List<ShareRecord> shared = new ArrayList<>(); // riusata per le risposte a SHOWMESHARING
+    private volatile ArrayDeque<ShareRecord> pushQueue; // notifiche non ancora inviate al client, creata con SUBSCRIBE
+    private volatile Runnable pushListener; // invocato dopo aver accodato notifiche (il NioReactor sveglia il proprio selector)
+
+    private Runnable journalListener; // invocato quando la modifica attesa è su disco, null per attenderla bloccando il thread (ClientHandler)
+    private UserJournal.Commit awaiting; // modifica non ancora su disco, la cui risposta (awaitingReply) è trattenuta
+    private Runnable awaitingReply;
+    private final Runnable replySuccess = () -> replies.status(BinaryProtocol.SUCCESS);
+
+    public ClientSession(int client_id) {
+        this.client_id = client_id;
+    }
+
+    /**
+     * Metodo che restituisce le risposte accumulate e non ancora inviate al client
+     * @return Il ReplyWriter della sessione
+     */
+    public ReplyWriter getReplies() {
+        return replies;
+    }
+
+    /**
+     * Metodo che restituisce l'identificativo del client associato alla sessione
+     * @return L'identificativo del client
+     */
+    public int getClientId() {
+        return client_id;
+    }
+
+    /**
+     * Metodo che imposta l'azione da eseguire quando vengono accodate nuove notifiche, dal thread che le pubblica
+     * @param listener L'azione, che non deve bloccare nè scrivere sulla connessione
+     */
+    public void setPushListener(Runnable listener) {
+        this.pushListener = listener;
+    }
+
+    /**
+     * Metodo che imposta l'azione da eseguire, dal thread del journal, quando la modifica attesa dalla sessione è su disco:
+     * da quel momento le modifiche non vengono più attese bloccando il thread della connessione (vedi resumeJournaled)
+     * @param listener L'azione, che non deve bloccare nè scrivere sulla connessione
+     */
+    public void setJournalListener(Runnable listener) {
+        this.journalListener = listener;
+    }
+
+    /**
+     * Metodo che indica se la sessione trattiene le risposte in attesa che una modifica sia scritta nel journal
+     * @return True se le risposte accumulate non vanno ancora inviate e i comandi successivi non vanno elaborati
+     */
+    public boolean isAwaitingJournal() {
+        return awaiting != null;
+    }
+
+    /**
+     * Metodo da invocare dal thread della connessione dopo la notifica del journal listener: se la modifica attesa è su disco
+     * accoda la risposta trattenuta, dopo di che le risposte possono essere inviate e i comandi successivi elaborati
+     * @return True se la sessione non attende più alcuna modifica
+     */
+    public boolean resumeJournaled() {
+        if (awaiting == null) {
+            return true;
+        }
+        if (!awaiting.isDone()) {
+            return false;
+        }
+        boolean durable = awaiting.isDurable();
+        Runnable reply = awaitingReply;
+        awaiting = null;
+        awaitingReply = null;
+        if (durable) {
+            reply.run();
+        } else {
+            replies.status(BinaryProtocol.ERROR);
+        }
+        return true;
+    }
+
+    // Accoda la risposta di un comando che ha modificato un utente quando la modifica è su disco (ERROR se la scrittura fallisce), attendendola o trattenendola
+    private void replyWhenJournaled(UserJournal.Commit commit, Runnable reply) {
+        Runnable listener = journalListener;
+        if (listener == null) {
+            if (WordleServerMain.awaitJournal(commit)) {
+                reply.run();
+            } else {
+                replies.status(BinaryProtocol.ERROR);
+            }
+        } else {
+            awaiting = commit;
+            awaitingReply = reply;
+            commit.whenDone(listener);
+        }
+    }
+
+    /**
+     * Metodo che indica se il client riceve le notifiche di condivisione sulla connessione
+     * @return True se il client ha inviato SUBSCRIBE
+     */
+    public boolean isSubscribed() {
+        return pushQueue != null;
+    }
+
+    /**
+     * Metodo invocato da NotificationHub (thread di invio della ShareRelay) per accodare un gruppo di notifiche.
+     * Se la coda supera PUSH_QUEUE_SIZE vengono scartate le notifiche più vecchie, in modo che un client lento
+     * non faccia crescere la memoria del server nè rallenti la consegna agli altri client.
+     * @param batch Le notifiche da accodare
+     */
+    public void push(List<ShareRecord> batch) {
+        ArrayDeque<ShareRecord> queue = pushQueue;
+        if (queue == null) {
+            return;
+        }
+        int dropped = 0;
+        synchronized (queue) {
+            for (ShareRecord record : batch) {
+                if (queue.size() >= WordleServerMain.PUSH_QUEUE_SIZE) {
+                    queue.poll();
+                    dropped++;
+                }
+                queue.add(record);
+            }
+        }
+        if (dropped > 0) {
+            ServerMetrics.pushDropped(dropped);
+        }
+        Runnable listener = pushListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Metodo che sposta le notifiche accodate nelle risposte da inviare al client, da invocare dal thread della connessione
+     * @return True se è stata aggiunta almeno una notifica alle risposte
+     */
+    public boolean drainPushes() {
+        ArrayDeque<ShareRecord> queue = pushQueue;
+        if (queue == null || logged_out) { // dopo il logout resta da inviare solo la sua risposta
+            return false;
+        }
+        int count = 0;
+        synchronized (queue) {
+            ShareRecord record;
+            while ((record = queue.poll()) != null) {
+                replies.notification(record);
+                count++;
+            }
+        }
+        if (count > 0) {
+            ServerMetrics.pushDelivered(count);
+        }
+        return count > 0;
+    }
+
+    /**
+     * Metodo che indica se il client ha effettuato il logout, e quindi la comunicazione va terminata
+     * @return True se è stato effettuato il logout, false altrimenti
+     */
+    public boolean isLoggedOut() {
+        return logged_out;
+    }
+
+    /**
+     * Metodo da invocare alla chiusura della connessione: se il client si è disconnesso senza fare logout, l'utente
+     * torna non autenticato (altrimenti non potrebbe più fare login) e la partita eventualmente in corso è considerata persa,
+     * come avviene con il logout.
+     */
+    public void disconnected() {
+        if (!logged_out && connectedUser != null) {
+            endSession();
+        }
+        ServerMetrics.clientDisconnected();
+    }
+
+    // Termina la sessione dell'utente autenticato, registrando come persa la partita eventualmente in corso
+    private void endSession() {
+        logged_out = true; // per interrompere il ciclo di gestione dei comandi ricevuti dal client
+        if (pushQueue != null) {
+            NotificationHub.unsubscribe(this);
+        }
+        if (is_playing) {
+            is_playing = false;
+            WordleServerMain.addLose(connectedUser); // Aggiungo una sconfitta all'utente e la registro nel journal (non confermata al client, che non va atteso)
+            ServerMetrics.recordGame(round, false);
+        }
+        connectedUser.setNotLoggedIn(); // solo ora un'altra connessione può autenticarsi con lo stesso utente
+    }
+
+    /**
+     * Metodo che elabora tutte le richieste complete contenute nei byte ricevuti dal client, accodando le risposte in getReplies().
+     * L'elaborazione si interrompe quando la sessione inizia ad attendere una modifica nel journal (vedi isAwaitingJournal).
+     * @param buf  Il buffer di lettura della connessione
+     * @param from La posizione del primo byte non ancora elaborato
+     * @param to   La posizione di fine (esclusa) dei byte ricevuti
+     * @return     La posizione del primo byte non elaborato (inizio di una richiesta non ancora completa)
+     * @throws IOException se il client ha inviato una richiesta malformata
+     */
+    public int process(byte[] buf, int from, int to) throws IOException {
+        while (from < to && !logged_out && awaiting == null) { // dopo il logout le eventuali richieste successive vengono ignorate
+            if (protocol == PROTOCOL_UNKNOWN) { // negoziazione: il protocollo binario è richiesto inviando BinaryProtocol.MAGIC
+                if (buf[from] != BinaryProtocol.MAGIC[0]) {
+                    protocol = PROTOCOL_TEXT;
+                } else if (to - from < BinaryProtocol.MAGIC.length) {
+                    break; // handshake non ancora completo
+                } else {
+                    for (int i = 0; i < BinaryProtocol.MAGIC.length; i++) {
+                        if (buf[from + i] != BinaryProtocol.MAGIC[i]) {
+                            throw new IOException("handshake del protocollo binario non valido");
+                        }
+                    }
+                    protocol = PROTOCOL_BINARY;
+                    BinaryReplyWriter binaryReplies = new BinaryReplyWriter();
+                    binaryReplies.handshake();
+                    replies = binaryReplies;
+                    from += BinaryProtocol.MAGIC.length;
+                    continue;
+                }
+            }
+
+            boolean parsed;
+            if (protocol == PROTOCOL_BINARY) { // frame [lunghezza u16][payload]
+                if (to - from < 2) {
+                    break;
+                }
+                int length = ((buf[from] & 0xFF) << 8) | (buf[from + 1] & 0xFF);
+                if (to - from < 2 + length) {
+                    break; // frame non ancora completo
+                }
+                if (!CommandParser.parseFrame(buf, from + 2, from + 2 + length, command)) {
+                    throw new IOException("frame malformato");
+                }
+                from += 2 + length;
+                parsed = true;
+            } else { // riga terminata da '\n'
+                int lineEnd = from;
+                while (lineEnd < to && buf[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                if (lineEnd == to) {
+                    break; // riga non ancora completa
+                }
+                parsed = CommandParser.parse(buf, from, lineEnd, command);
+                from = lineEnd + 1;
+            }
+
+            if (parsed) { // una riga vuota non contiene alcun comando
+                handleCommand(command);
+            }
+        }
+        return from;
+    }
+
+    /**
+     * Metodo che elabora un comando ricevuto dal client, fornendo risposte diverse a seconda del comando ricevuto.
+     * La risposta viene accodata in getReplies(), e il tempo di elaborazione registrato in ServerMetrics.
+     * @param cmd Il comando già riconosciuto dal CommandParser, e.g: REGISTER,username,password
+     */
+    public void handleCommand(Command cmd) {
+        if (WordleServerMain.LOG_COMMANDS && ServerLog.enabled(ServerLog.DEBUG)) { // il messaggio viene costruito solo se va registrato
+            ServerLog.log(ServerLog.DEBUG, "[Client #" + client_id + "] comando ricevuto: " + cmd);
+        }
+        long start = System.nanoTime();
+        execute(cmd);
+        ServerMetrics.recordRequest(cmd.getOp(), System.nanoTime() - start);
+    }
+
+    // Esegue un comando accodandone la risposta
+    private void execute(Command cmd) {
+        String username, password, outcome;
+
+        if (connectedUser == null && cmd.getOp() > Command.LOGIN) { // tutti i comandi tranne REGISTER e LOGIN richiedono il login su questa connessione
+            replies.status(BinaryProtocol.NOT_LOGGED);
+            return;
+        }
+
+        switch (cmd.getOp()) { // La gestione del comando varia a seconda del comando ricevuto
+            case Command.REGISTER:
+                username = cmd.arg(0);
+                password = cmd.arg(1);
+
+                outcome = WordleServerMain.checkCredentials(username, password);
+                if (!outcome.equals("SUCCESS")) {
+                    replies.status(outcome);
+                    break;
+                }
+                // Aggiungo il client agli utenti memorizzati dal server (se non presente un utente con lo stesso nome)
+                UserJournal.Commit registered = WordleServerMain.addUser(username, password);
+                if (registered == null) {
+                    replies.status(BinaryProtocol.DUPLICATE);
+                } else {
+                    replyWhenJournaled(registered, replySuccess);
+                }
+                break;
+
+            case Command.LOGIN:
+                User matchedUser = WordleServerMain.getUser(cmd.arg(0)); // Esiste un utente con l'username fornito?
+                if (matchedUser == null) { // Se non esiste => errore (cioè comunico l'errore al client)
+                    replies.status(BinaryProtocol.NON_EXISTING_USER);
+                } else if (!cmd.argEquals(1, matchedUser.getPassword())) { // Esiste ma la password ricevuta dal client e quella memorizzata non coincidono => errore
+                    replies.status(BinaryProtocol.WRONG_PASSWORD);
+                } else if (connectedUser != null || !matchedUser.tryLogin()) { // Esiste ma l'utente con quell'username è già autenticato (non ammetto sessioni multiple per uno stesso utente) => errore
+                    replies.status(BinaryProtocol.ALREADY_LOGGED);
+                } else { // Autenticazione effettuata con successo (controllo e aggiornamento dello stato di autenticazione avvengono in modo atomico)
+                    connectedUser = matchedUser; // L'utente autenticato è quello memorizzato dal server, per cui le modifiche sono subito visibili
+                    replies.status(BinaryProtocol.SUCCESS);
+                }
+                break;
+
+            case Command.LOGOUT:
+                if (!cmd.argEquals(0, connectedUser.getUsername())) { // L'utente specificato dal client nel logout non coincide con l'username di chi ha fatto la richiesta
+                    replies.status(BinaryProtocol.ERROR);
+                    break;
+                }
+                // Se decido di fare logout una volta iniziata una partita allora la partita non conclusa è considerata persa.
+                // L'esito negativo della partita è trasparente all'utente,
+                // ovvero non è mandato un messaggio di notifica per la terminazione prematura della partita ma solo che il logout è avvenuto con successo
+                // Il logout avviene comunque (la sessione è già terminata), per cui la sua risposta non dipende dalla scrittura della sconfitta nel journal
+                endSession();
+                replies.status(BinaryProtocol.SUCCESS);
+                break;
+
+            case Command.PLAYWORDLE:
+                Round current = WordleServerMain.getCurrentRound(); // parola ed epoch letti insieme, anche se nel frattempo viene estratta una nuova parola
+                UserJournal.Commit played = WordleServerMain.checkIfUserHasPlayed(connectedUser.getUsername(), current.getEpoch()); // Controllo se l'utente ha già provato a giocare con l'ultima secret word estratta
+                if (played == null) {
+                    replies.status(BinaryProtocol.ALREADY_PLAYED);
+                    break;
+                }
+                round = current; // la partita prosegue con questa parola anche se nel frattempo ne viene estratta una nuova
+                is_playing = true;
+                has_won = false; // necessario se si proviene da una partita precedente che è stata vinta al fine di poter inviare i propri tentativi con sendWord
+                userAttempts = 0; // ogni partita azzera il numero dei tentativi effettuati in precedenti partite del giocatore
+                letters = PackedWord.length(round.getSecretCode());
+                Arrays.fill(grid, (byte) 0);
+                replyWhenJournaled(played, replySuccess);
+                break;
+
+            case Command.SENDWORD:
+                // la guessed word viene codificata direttamente dal buffer del comando, senza creare una stringa
+                long guess = PackedWord.encode(cmd.getBuffer(), cmd.getArgStart(0), cmd.getArgLength(0));
+
+                if (round == null) { // nessuna partita iniziata con PLAYWORDLE su questa connessione
+                    replies.status(BinaryProtocol.ERROR);
+                    break;
+                } else if (has_won) { // se l'utente ha vinto (indovinato l'ultima secret word) e non ha richiesto di giocare una nuova partita => errore (non può sottomettere una nuova guessed word)
+                    replies.status(BinaryProtocol.ALREADY_WON);
+                    break;
+                } else if (userAttempts == MAX_ATTEMPTS) { // l'utente ha raggiunto il numero massimo di tentativi senza indovinare la parola (ha perso)
+                    replies.status(BinaryProtocol.MAX_ATTEMPTS);
+                    break;
+                } else if (!WordleServerMain.isInVocabulary(guess)) { // la parola mandata dal client non è nel vocabolario, tentativo non contato
+                    ServerMetrics.vocabularyMiss();
+                    replies.status(BinaryProtocol.NOT_IN_VOCABULARY);
+                    break;
+                }
+
+                // parola nel vocabolario, conto il tentativo
+                userAttempts++;
+
+                if (guess == round.getSecretCode()) { // l'utente ha indovinato la parola segreta
+                    ShareRecord.setRow(grid, userAttempts - 1, letters, null, 0);
+                    connectedUser.setLast_game(ShareRecord.of(connectedUser.getUsername(), round.getEpoch(), true, userAttempts, letters, grid));
+                    UserJournal.Commit won = WordleServerMain.addWin(connectedUser, userAttempts); // aggiorno statistiche dell'utente con una vittoria e la registro nel journal
+                    ServerMetrics.recordGame(round, true);
+                    has_won = true;
+                    is_playing = false; // non gioca più, la partita è finita (è importante sapere se al momento del logout la partita è finita o è in corso, nell'ultimo caso è contata come persa)
+                    int attempts = userAttempts;
+                    replyWhenJournaled(won, () -> replies.win(attempts));
+                    break;
+                }
+
+                int guessLength = provideClue(guess, clue); // calcolo dei suggerimenti in base alla parola fornita
+                ShareRecord.setRow(grid, userAttempts - 1, letters, clue, guessLength);
+
+                if (userAttempts == MAX_ATTEMPTS) { // se tentativi finiti per indovinare la secret word
+                    connectedUser.setLast_game(ShareRecord.of(connectedUser.getUsername(), round.getEpoch(), false, userAttempts, letters, grid));
+                    UserJournal.Commit lost = WordleServerMain.addLose(connectedUser); // aggiorno statistiche dell'utente con una sconfitta e la registro nel journal
+                    ServerMetrics.recordGame(round, false);
+                    is_playing = false; // non gioca più, la partita è finita
+                    String secretWord = round.getSecretWord();
+                    replyWhenJournaled(lost, () -> replies.lose(clue, guessLength, secretWord)); // clue non cambia finchè la risposta è trattenuta
+                    break;
+                }
+                // tentativi non finiti per indovinare la secret word, invio dei suggerimenti sulla base della parola fornita
+                replies.clue(clue, guessLength, MAX_ATTEMPTS - userAttempts);
+                break;
+
+            case Command.SENDMESTATISTICS:
+                replies.statistics(connectedUser); // l'utente autenticato è quello memorizzato dal server
+                break;
+
+            case Command.SUBSCRIBE:
+                if (pushQueue == null) {
+                    pushQueue = new ArrayDeque<>();
+                    NotificationHub.subscribe(this);
+                }
+                replies.status(BinaryProtocol.SUCCESS);
+                break;
+
+            case Command.SHOWMESHARING:
+                long after;
+                try {
+                    after = cmd.getArgCount() > 0 ? Long.parseLong(cmd.arg(0)) : 0; // ultimo numero di sequenza ricevuto dal client
+                } catch (NumberFormatException ex) {
+                    after = -1;
+                }
+                if (after < 0) {
+                    replies.status(BinaryProtocol.ERROR);
+                    break;
+                }
+                long cursor = WordleServerMain.getCurrentRound().getShareLog().fetch(after, shared);
+                replies.sharing(cursor, shared);
+                shared.clear();
+                break;
+
+            case Command.SHARE: // si può condividere solo il risultato del proprio utente autenticato
+                replies.status(WordleServerMain.shareLastGame(connectedUser));
+                break;
+
+            default:
+                replies.unknownCommand();
+        }
+    }
+
+    /**
+     * Metodo che data una guessed word dell'utente va a fornire degli indizi
+     * @param  guess La parola proposta da parte dell'utente per indovinare la secret word, codificata (vedi PackedWord)
+     * @param  clue  Il buffer in cui scrivere gli indizi, un simbolo per lettera
+     * @return       Il numero di lettere della guessed word (e quindi di indizi scritti)
+     */
+    public int provideClue(long guess, byte[] clue) {
+        /* Legenda:
+         * GRIGIO = X, VERDE = +, GIALLO = ?
+         * GRIGIO : lettera non appartenente alla parola segreta (o occorrenza in più di quelle presenti nella parola segreta)
+         * VERDE  : lettera appartenente alla parola segreta e in posizione corretta
+         * GIALLO : lettera appartenente alla parola segreta ma in posizione sbagliata
+         * (vedi ClueEngine per la gestione delle lettere ripetute)
+         */
+        return round.clue(guess, clue); // gli indizi di una guessed word già proposta nel turno vengono letti dalla cache del turno
+    }
+}
@@ -0,0 +1,103 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Classe che implementa una cache limitata e concorrente degli indizi calcolati per una secret word: guessed word (codificata
+ * con PackedWord) -> indizi. Durante un turno tutti i giocatori confrontano le proprie guessed word con la stessa secret word,
+ * e le parole di apertura più comuni si ripetono molte volte, per cui gli indizi vengono calcolati una sola volta.
+ * La cache appartiene al turno (vedi Round): alla pubblicazione di un nuovo turno viene sostituita insieme alla secret word.
+ * E' una tabella a indirizzamento diretto: ogni guessed word ha un'unica posizione, e una parola nuova sostituisce quella
+ * presente (la dimensione non cresce mai oltre la capacità). Le letture non acquisiscono lock: una hit costa il calcolo
+ * della posizione, una lettura volatile e la copia degli indizi nel buffer del chiamante.
+ */
+public class ClueCache {
+
+    // Elemento immutabile della cache
+    private static final class Entry {
+        final long guess;
+        final byte[] clue; // un simbolo per lettera della guessed word
+
+        Entry(long guess, byte[] clue) {
+            this.guess = guess;
+            this.clue = clue;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> table; // null se la cache è disabilitata
+    private final int shift; // 64 - log2(capacità), per ricavare la posizione dai bit alti dell'hash
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param capacity Il numero massimo di elementi, arrotondato alla potenza di 2 successiva (0 per disabilitare la cache)
+     */
+    public ClueCache(int capacity) {
+        if (capacity <= 0) {
+            table = null;
+            shift = 0;
+            return;
+        }
+        int size = 2;
+        while (size < capacity && size < (1 << 30)) {
+            size <<= 1;
+        }
+        table = new AtomicReferenceArray<>(size);
+        shift = 64 - Integer.numberOfTrailingZeros(size);
+    }
+
+    /**
+     * Metodo che copia nel buffer gli indizi di una guessed word, se presenti nella cache
+     * @param guess La guessed word codificata
+     * @param clue  Il buffer in cui copiare gli indizi
+     * @return      Il numero di indizi copiati, o -1 se la guessed word non è nella cache
+     */
+    public int get(long guess, byte[] clue) {
+        if (table == null) {
+            return -1;
+        }
+        Entry entry = table.get(slot(guess));
+        if (entry == null || entry.guess != guess) {
+            misses.increment();
+            return -1;
+        }
+        hits.increment();
+        System.arraycopy(entry.clue, 0, clue, 0, entry.clue.length);
+        return entry.clue.length;
+    }
+
+    /**
+     * Metodo che memorizza gli indizi di una guessed word, sostituendo l'elemento che occupa la stessa posizione
+     * @param guess   La guessed word codificata
+     * @param clue    Gli indizi calcolati (vengono copiati)
+     * @param letters Il numero di indizi
+     */
+    public void put(long guess, byte[] clue, int letters) {
+        if (table == null) {
+            return;
+        }
+        byte[] copy = new byte[letters];
+        System.arraycopy(clue, 0, copy, 0, letters);
+        table.set(slot(guess), new Entry(guess, copy));
+    }
+
+    // Hash moltiplicativo (Fibonacci): i bit alti dipendono da tutte le lettere della parola
+    private int slot(long guess) {
+        return (int) ((guess * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    public int getCapacity() {
+        return table == null ? 0 : table.length();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
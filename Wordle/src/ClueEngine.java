@@ -0,0 +1,75 @@
+import java.util.Arrays;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Classe che calcola gli indizi delle guessed word rispetto a una secret word, secondo le regole di Wordle anche in presenza
+ * di lettere ripetute: una lettera è segnata '?' solo se la secret word ne contiene altre occorrenze non già indovinate
+ * ('+') o segnalate ('?') in una posizione precedente della guessed word; le occorrenze in eccesso sono segnate 'X'.
+ * Il calcolo avviene in due passate: prima le lettere in posizione corretta, poi quelle presenti in posizione sbagliata.
+ * La tabella delle occorrenze delle lettere della secret word è calcolata una sola volta per turno: ogni lettera distinta
+ * della secret word (al massimo PackedWord.MAX_LETTERS) ha un indice, e le occorrenze sono contatori da 4 bit in un unico long.
+ * Durante il calcolo ne viene modificata una copia in una variabile locale, per cui un'istanza può essere usata da più thread
+ * e il calcolo non alloca memoria. Funziona con parole di qualsiasi lunghezza codificabile con PackedWord,
+ * anche se guessed word e secret word hanno lunghezze diverse.
+ */
+public class ClueEngine {
+
+    private final long secret; // la secret word codificata (vedi PackedWord)
+    private final byte[] slots = new byte[32]; // indice di ogni lettera ('a' = 1, ..., 'z' = 26) nella tabella delle occorrenze, -1 se assente
+    private final long counts; // occorrenze di ogni lettera della secret word, 4 bit per indice
+
+    /**
+     * @param secret La secret word codificata (vedi PackedWord)
+     */
+    public ClueEngine(long secret) {
+        this.secret = secret;
+        Arrays.fill(slots, (byte) -1);
+        int distinct = 0;
+        long table = 0;
+        for (int i = 0, letters = PackedWord.length(secret); i < letters; i++) {
+            int letter = PackedWord.letterAt(secret, i);
+            if (slots[letter] < 0) {
+                slots[letter] = (byte) distinct++;
+            }
+            table += 1L << (slots[letter] << 2);
+        }
+        this.counts = table;
+    }
+
+    /**
+     * Metodo che calcola gli indizi di una guessed word
+     * @param guess La guessed word codificata (vedi PackedWord)
+     * @param clue  Il buffer in cui scrivere gli indizi ('+', '?', 'X'), un simbolo per lettera; lungo almeno quanto la guessed word
+     * @return      Il numero di lettere della guessed word (e quindi di indizi scritti)
+     */
+    public int clue(long guess, byte[] clue) {
+        int letters = PackedWord.length(guess);
+        long green = PackedWord.matchMask(guess, secret) & PackedWord.prefixMask(letters); // solo le posizioni della guessed word
+        long remaining = counts; // occorrenze non ancora assegnate a un indizio
+
+        // prima passata: lettere in posizione corretta, che consumano un'occorrenza della lettera
+        for (long g = green; g != 0; g &= g - 1) { // scorro solo le posizioni indovinate
+            int i = PackedWord.MAX_LETTERS - 1 - Long.numberOfTrailingZeros(g) / PackedWord.BITS;
+            clue[i] = '+';
+            remaining -= 1L << (slots[PackedWord.letterAt(guess, i)] << 2);
+        }
+
+        // seconda passata: da sinistra a destra, una lettera è presente finchè ne restano occorrenze non assegnate
+        for (int i = 0; i < letters; i++) {
+            if (PackedWord.letterAt(green, i) != 0) {
+                continue;
+            }
+            int slot = slots[PackedWord.letterAt(guess, i)];
+            if (slot >= 0 && ((remaining >>> (slot << 2)) & 15) != 0) {
+                clue[i] = '?';
+                remaining -= 1L << (slot << 2);
+            } else {
+                clue[i] = 'X';
+            }
+        }
+        return letters;
+    }
+}
@@ -0,0 +1,110 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Classe che rappresenta un comando del protocollo testuale già riconosciuto dal CommandParser.
+ * Gli argomenti non vengono copiati in nuove stringhe ma sono individuati dalla loro posizione nel buffer di lettura
+ * della connessione; un oggetto Command viene riusato per tutti i comandi ricevuti su una stessa connessione.
+ */
+public class Command {
+
+    // Codici dei comandi riconosciuti
+    public static final int UNKNOWN = 0;
+    public static final int REGISTER = 1;
+    public static final int LOGIN = 2;
+    public static final int LOGOUT = 3;
+    public static final int PLAYWORDLE = 4;
+    public static final int SENDWORD = 5;
+    public static final int SENDMESTATISTICS = 6;
+    public static final int SUBSCRIBE = 7; // ricezione delle notifiche di condivisione sulla connessione (vedi NotificationHub)
+    public static final int SHOWMESHARING = 8; // risultati condivisi nel turno successivi a un numero di sequenza (vedi ShareLog)
+    public static final int SHARE = 9; // condivisione del risultato dell'ultima partita dell'utente autenticato (vedi ShareRelay)
+
+    public static final int MAX_ARGS = 3; // numero massimo di argomenti di un comando (gli eventuali successivi vengono ignorati)
+
+    int op = UNKNOWN; // codice del comando ricevuto
+    byte[] buf; // buffer che contiene la riga ricevuta
+    int lineStart, lineEnd; // posizione del comando (primo token della riga) nel buffer
+    final int[] argStart = new int[MAX_ARGS]; // posizione di inizio di ogni argomento nel buffer
+    final int[] argEnd = new int[MAX_ARGS]; // posizione di fine (esclusa) di ogni argomento nel buffer
+    int argCount = 0;
+    boolean framed = false; // true se il comando è stato ricevuto con il protocollo binario
+
+    public int getOp() {
+        return op;
+    }
+
+    public int getArgCount() {
+        return argCount;
+    }
+
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    public int getArgStart(int i) {
+        checkArg(i);
+        return argStart[i];
+    }
+
+    public int getArgLength(int i) {
+        checkArg(i);
+        return argEnd[i] - argStart[i];
+    }
+
+    /**
+     * Metodo che restituisce un argomento del comando come stringa (da usare solo dove serve davvero un oggetto String, e.g: chiave di una mappa)
+     * @param i L'indice dell'argomento
+     * @return  L'argomento i-esimo
+     */
+    public String arg(int i) {
+        checkArg(i);
+        return new String(buf, argStart[i], argEnd[i] - argStart[i], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Metodo che confronta un argomento del comando con una stringa senza creare oggetti intermedi
+     * @param i L'indice dell'argomento
+     * @param s La stringa (ASCII) con cui confrontare l'argomento
+     * @return  True se l'argomento coincide con la stringa, false altrimenti
+     */
+    public boolean argEquals(int i, String s) {
+        checkArg(i);
+        int len = argEnd[i] - argStart[i];
+        if (s == null || s.length() > len) { // in UTF-8 ogni carattere occupa almeno un byte
+            return false;
+        }
+        for (int k = 0; k < s.length(); k++) {
+            char c = s.charAt(k);
+            if (c > 0x7F) { // carattere non ASCII: confronto la stringa decodificata
+                return arg(i).equals(s);
+            }
+            if (buf[argStart[i] + k] != c) {
+                return false;
+            }
+        }
+        return s.length() == len;
+    }
+
+    // Come cmd_components[i] con String.split: un argomento mancante è un comando malformato
+    private void checkArg(int i) {
+        if (i >= argCount) {
+            throw new IllegalArgumentException("argomento " + (i + 1) + " mancante nel comando " + this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (!framed) { // la riga ricevuta è già nel formato testuale
+            return new String(buf, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+        }
+        StringBuilder sb = new StringBuilder(CommandParser.opName(op));
+        for (int i = 0; i < argCount; i++) {
+            sb.append(',').append(arg(i));
+        }
+        return sb.toString();
+    }
+}
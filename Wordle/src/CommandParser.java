@@ -0,0 +1,139 @@
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Classe che riconosce i comandi del protocollo testuale (e.g: SENDWORD,guessword) lavorando direttamente sui byte ricevuti,
+ * senza creare stringhe intermedie nè usare espressioni regolari (come invece fanno Scanner.next() e String.split(",")).
+ */
+public class CommandParser {
+
+    // Nomi dei comandi, nell'ordine dei codici definiti in Command
+    private static final byte[][] OP_NAMES = {
+        "REGISTER".getBytes(),
+        "LOGIN".getBytes(),
+        "LOGOUT".getBytes(),
+        "PLAYWORDLE".getBytes(),
+        "SENDWORD".getBytes(),
+        "SENDMESTATISTICS".getBytes(),
+        "SUBSCRIBE".getBytes(),
+        "SHOWMESHARING".getBytes(),
+        "SHARE".getBytes()
+    };
+
+    /**
+     * Metodo che riconosce il comando contenuto in una riga, cioè il primo token delimitato da spazi, e i suoi argomenti separati da virgole.
+     * @param buf  Il buffer che contiene la riga
+     * @param from La posizione di inizio della riga nel buffer
+     * @param to   La posizione di fine (esclusa) della riga nel buffer, senza il fine riga
+     * @param cmd  Il Command (riusato) in cui memorizzare il risultato
+     * @return     True se la riga contiene un comando, false se è vuota
+     */
+    public static boolean parse(byte[] buf, int from, int to, Command cmd) {
+        // salto gli spazi iniziali e individuo la fine del primo token (come Scanner.next())
+        while (from < to && isWhitespace(buf[from])) {
+            from++;
+        }
+        int end = from;
+        while (end < to && !isWhitespace(buf[end])) {
+            end++;
+        }
+        if (from == end) {
+            return false;
+        }
+
+        cmd.buf = buf;
+        cmd.lineStart = from;
+        cmd.lineEnd = end;
+        cmd.argCount = 0;
+        cmd.framed = false;
+
+        // il nome del comando termina alla prima virgola
+        int comma = from;
+        while (comma < end && buf[comma] != ',') {
+            comma++;
+        }
+        cmd.op = recognizeOp(buf, from, comma);
+
+        // argomenti separati da virgole
+        int argFrom = comma + 1;
+        while (argFrom <= end && cmd.argCount < Command.MAX_ARGS) {
+            int argTo = argFrom;
+            while (argTo < end && buf[argTo] != ',') {
+                argTo++;
+            }
+            cmd.argStart[cmd.argCount] = argFrom;
+            cmd.argEnd[cmd.argCount] = argTo;
+            cmd.argCount++;
+            argFrom = argTo + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Metodo che riconosce il comando contenuto nel payload di un frame del protocollo binario: [codice u8]([lunghezza u8][argomento])*
+     * @param buf  Il buffer che contiene il frame
+     * @param from La posizione di inizio del payload nel buffer
+     * @param to   La posizione di fine (esclusa) del payload nel buffer
+     * @param cmd  Il Command (riusato) in cui memorizzare il risultato
+     * @return     True se il payload è ben formato, false altrimenti
+     */
+    public static boolean parseFrame(byte[] buf, int from, int to, Command cmd) {
+        if (from >= to) {
+            return false;
+        }
+        cmd.buf = buf;
+        cmd.lineStart = from;
+        cmd.lineEnd = to;
+        cmd.argCount = 0;
+
+        int op = buf[from] & 0xFF;
+        cmd.op = (op > Command.UNKNOWN && op <= OP_NAMES.length) ? op : Command.UNKNOWN;
+
+        int pos = from + 1;
+        while (pos < to && cmd.argCount < Command.MAX_ARGS) {
+            int length = buf[pos] & 0xFF;
+            if (pos + 1 + length > to) {
+                return false;
+            }
+            cmd.argStart[cmd.argCount] = pos + 1;
+            cmd.argEnd[cmd.argCount] = pos + 1 + length;
+            cmd.argCount++;
+            pos += 1 + length;
+        }
+        cmd.framed = true;
+        return true;
+    }
+
+    /**
+     * Metodo che restituisce il nome di un comando
+     * @param op Il codice del comando
+     * @return   Il nome del comando (e.g: SENDWORD), o "UNKNOWN"
+     */
+    public static String opName(int op) {
+        return op > Command.UNKNOWN && op <= OP_NAMES.length ? new String(OP_NAMES[op - 1]) : "UNKNOWN";
+    }
+
+    // Restituisce il codice del comando il cui nome coincide con i byte in [from, to), o Command.UNKNOWN
+    private static int recognizeOp(byte[] buf, int from, int to) {
+        int len = to - from;
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            byte[] name = OP_NAMES[op];
+            if (name.length != len) {
+                continue;
+            }
+            int i = 0;
+            while (i < len && buf[from + i] == name[i]) {
+                i++;
+            }
+            if (i == len) {
+                return op + 1;
+            }
+        }
+        return Command.UNKNOWN;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '\f' || b == 0x0B;
+    }
+}
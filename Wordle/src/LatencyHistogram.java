@@ -0,0 +1,110 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Istogramma concorrente di durate in ns, a bucket log-lineari (come HdrHistogram): i valori fino a 63 hanno un bucket
+ * ciascuno, oltre ogni potenza di 2 è divisa in 32 bucket, per cui un percentile è approssimato per difetto di meno del 3,2%
+ * qualunque sia l'ordine di grandezza. Le durate oltre 2^40 ns (circa 18 minuti) finiscono nell'ultimo bucket.
+ * I contatori sono suddivisi in più strisce, scelte in base al thread che registra la durata: thread diversi incrementano
+ * di norma contatori diversi (in zone di memoria distanti), per cui la registrazione costa un incremento atomico non conteso.
+ * La lettura somma le strisce, e non è atomica rispetto alle registrazioni concorrenti.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS; // bucket per ogni potenza di 2
+    private static final int MAX_BITS = 40; // bit significativi della durata massima distinta
+    private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+    private static final int COUNT = BUCKETS; // posizione (in ogni striscia) del numero di durate registrate
+    private static final int SUM = BUCKETS + 1; // posizione della somma delle durate
+    private static final int STRIPE_LENGTH = BUCKETS + 2;
+    private static final int STRIPES = stripes();
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * STRIPE_LENGTH);
+
+    // Una striscia per processore (al massimo 8), in numero potenza di 2
+    private static int stripes() {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() && stripes < 8) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    /**
+     * Metodo che registra una durata
+     * @param nanos La durata in ns (i valori negativi sono registrati come 0)
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        int base = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * STRIPE_LENGTH;
+        counts.incrementAndGet(base + index(value));
+        counts.incrementAndGet(base + COUNT);
+        counts.addAndGet(base + SUM, value);
+    }
+
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS; // il valore diviso per 2^shift è in [32, 64)
+        if (shift >= MAX_BITS - SUB_BITS) { // durata di almeno 2^MAX_BITS ns
+            return BUCKETS - 1;
+        }
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long lowerBound(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    private long sum(int position) {
+        long total = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            total += counts.get(stripe * STRIPE_LENGTH + position);
+        }
+        return total;
+    }
+
+    public long getCount() {
+        return sum(COUNT);
+    }
+
+    // Somma delle durate registrate, in ns
+    public long getSum() {
+        return sum(SUM);
+    }
+
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : (double) getSum() / n;
+    }
+
+    /**
+     * Metodo che restituisce un percentile delle durate registrate
+     * @param fraction La frazione delle durate (e.g: 0.99 per il 99-esimo percentile, 1 per la massima)
+     * @return         Il limite inferiore del bucket in cui cade il percentile, in ns (0 se non è stata registrata alcuna durata)
+     */
+    public long percentile(double fraction) {
+        long n = getCount();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += sum(i);
+            if (seen >= rank) {
+                return lowerBound(i);
+            }
+        }
+        return lowerBound(BUCKETS - 1);
+    }
+}
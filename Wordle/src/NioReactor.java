@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author Leonardo Arditti 23/4/2023
+ */
+
+/**
+ * Task che gestisce tramite un unico Selector le connessioni di molti client (modalità SERVER_MODE=nio).
+ * Ogni connessione ha un proprio buffer di lettura e una ClientSession che elabora i comandi e accumula le risposte,
+ * in questo modo un client inattivo non occupa un thread ma solo la memoria dei propri buffer.
+ * Il reactor non attende mai la scrittura su disco di una modifica agli utenti: la sessione che la attende trattiene le risposte
+ * e smette di essere letta, e viene ripresa (coda journaled) quando il thread del journal notifica che la modifica è su disco.
+ */
+public class NioReactor implements Runnable {
+
+    private static final int BUFFER_SIZE = 1024; // dimensione iniziale del buffer di lettura di una connessione
+
+    private final Selector selector;
+    private final Queue<Connection> pending = new ConcurrentLinkedQueue<>(); // connessioni accettate dal thread main ma non ancora registrate sul selector
+    private final Queue<Connection> pushed = new ConcurrentLinkedQueue<>(); // connessioni con nuove notifiche da inviare (vedi ClientSession.push)
+    private final Queue<Connection> journaled = new ConcurrentLinkedQueue<>(); // connessioni la cui modifica attesa è su disco (vedi ClientSession.setJournalListener)
+
+    // Stato associato a una singola connessione (attachment della SelectionKey)
+    private static class Connection {
+        final SocketChannel channel;
+        final ClientSession session; // elabora i comandi e accumula le risposte non ancora inviate
+        ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE); // in modalità scrittura: contiene i byte ricevuti non ancora elaborati
+        final AtomicBoolean pushScheduled = new AtomicBoolean(); // true se la connessione è già nella coda pushed
+
+        Connection(SocketChannel channel, int client_id) {
+            this.channel = channel;
+            this.session = new ClientSession(client_id);
+        }
+    }
+
+    public NioReactor() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Metodo invocato dal thread che accetta le connessioni per affidare un nuovo client a questo reactor.
+     * @param channel   La SocketChannel restituita dalla accept
+     * @param client_id L'identificativo del client, per le stampe sulla CLI del server
+     * @throws IOException se non è possibile impostare la channel in modalità non bloccante
+     */
+    public void register(SocketChannel channel, int client_id) throws IOException {
+        channel.configureBlocking(false);
+        Connection conn = new Connection(channel, client_id);
+        conn.session.setPushListener(() -> { // eseguito dal thread che pubblica le notifiche
+            if (conn.pushScheduled.compareAndSet(false, true)) {
+                pushed.add(conn);
+                selector.wakeup();
+            }
+        });
+        conn.session.setJournalListener(() -> { // eseguito dal thread del journal
+            journaled.add(conn);
+            selector.wakeup();
+        });
+        pending.add(conn);
+        selector.wakeup(); // il thread del reactor potrebbe essere bloccato nella select()
+    }
+
+    /**
+     * Ciclo principale del reactor: attende eventi sulle connessioni registrate e li gestisce senza mai bloccarsi sulla singola connessione.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+
+                // registro le connessioni accettate nel frattempo
+                Connection conn;
+                while ((conn = pending.poll()) != null) {
+                    if (ServerLog.enabled(ServerLog.INFO)) {
+                        ServerLog.log(ServerLog.INFO, "[Client #" + conn.session.getClientId() + "] ha effettuato una richiesta di connessione da " + conn.channel.socket().getInetAddress().getHostAddress() + ":" + conn.channel.socket().getPort());
+                    }
+                    conn.channel.register(selector, SelectionKey.OP_READ, conn);
+                }
+
+                // invio le notifiche accodate nel frattempo alle sessioni
+                while ((conn = pushed.poll()) != null) {
+                    conn.pushScheduled.set(false);
+                    SelectionKey key = conn.channel.keyFor(selector);
+                    if (key == null || !key.isValid()) {
+                        continue; // connessione chiusa o non ancora registrata (le notifiche partiranno con la prossima risposta)
+                    }
+                    try {
+                        handleWrite(key, conn);
+                    } catch (Exception e) {
+                        System.err.println("Errore nella comunicazione con il client.");
+                        e.printStackTrace();
+                        close(key, conn);
+                    }
+                }
+
+                // riprendo le sessioni la cui modifica attesa è stata scritta nel journal: risposte trattenute e comandi già ricevuti
+                while ((conn = journaled.poll()) != null) {
+                    SelectionKey key = conn.channel.keyFor(selector);
+                    if (key == null || !key.isValid() || !conn.session.resumeJournaled()) {
+                        continue; // connessione chiusa nel frattempo
+                    }
+                    try {
+                        handleInput(key, conn);
+                    } catch (Exception e) {
+                        System.err.println("Errore nella comunicazione con il client.");
+                        e.printStackTrace();
+                        close(key, conn);
+                    }
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    conn = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            handleRead(key, conn);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            handleWrite(key, conn);
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Errore nella comunicazione con il client.");
+                        e.printStackTrace();
+                        close(key, conn);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException ex) {
+            System.err.printf("[SERVER] Errore: %s\n", ex.getMessage());
+        } finally {
+            // alla terminazione del reactor chiudo tutte le connessioni ancora aperte
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException ex) { }
+        }
+    }
+
+    /**
+     * Metodo che legge i byte disponibili sulla connessione ed elabora tutti i comandi completi (terminati da un fine riga) ricevuti.
+     */
+    private void handleRead(SelectionKey key, Connection conn) throws IOException {
+        if (!conn.in.hasRemaining()) { // buffer pieno senza aver trovato un fine riga
+            if (conn.in.capacity() >= ClientSession.MAX_REQUEST_LENGTH) {
+                throw new IOException("comando troppo lungo");
+            }
+            conn.in = grow(conn.in, conn.in.capacity() * 2);
+        }
+
+        int read = conn.channel.read(conn.in);
+        if (read == -1) { // il client ha chiuso la connessione
+            close(key, conn);
+            return;
+        }
+
+        handleInput(key, conn);
+    }
+
+    /**
+     * Metodo che elabora i comandi completi presenti nel buffer di lettura e invia le risposte. Se la sessione inizia ad attendere
+     * una modifica nel journal i comandi successivi restano nel buffer, e vengono elaborati quando la sessione viene ripresa.
+     */
+    private void handleInput(SelectionKey key, Connection conn) throws IOException {
+        conn.in.flip();
+        conn.in.position(conn.session.process(conn.in.array(), conn.in.position(), conn.in.limit()));
+        conn.in.compact(); // mantengo nel buffer l'eventuale comando non ancora completo
+
+        handleWrite(key, conn);
+    }
+
+    /**
+     * Metodo che invia quanto possibile delle risposte accumulate; se la socket non accetta tutti i byte resto in attesa di OP_WRITE.
+     * Finchè ci sono risposte da inviare la connessione non viene letta (solo OP_WRITE): un client che invia comandi senza
+     * leggere le risposte resta fermo nel proprio buffer di ricezione del TCP invece di far crescere il buffer delle risposte.
+     * La lettura riprende quando il buffer delle risposte è stato svuotato.
+     * Le notifiche accodate nella sessione vengono aggiunte solo dopo aver inviato tutto il resto: finchè il client non legge
+     * restano nella coda limitata della sessione, che scarta le più vecchie, invece di far crescere il buffer delle risposte.
+     * Mentre la sessione attende una modifica nel journal non viene inviato nulla e la connessione non viene nè letta nè scritta.
+     */
+    private void handleWrite(SelectionKey key, Connection conn) throws IOException {
+        if (conn.session.isAwaitingJournal()) {
+            key.interestOps(0);
+            return;
+        }
+        boolean done;
+        do {
+            done = conn.session.getReplies().writeTo(conn.channel);
+        } while (done && conn.session.drainPushes());
+
+        if (!done) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else if (conn.session.isLoggedOut()) { // risposta al logout inviata, termino la comunicazione
+            close(key, conn);
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void close(SelectionKey key, Connection conn) {
+        if (ServerLog.enabled(ServerLog.INFO)) {
+            ServerLog.log(ServerLog.INFO, "[Client #" + conn.session.getClientId() + "] disconnesso dal server.");
+        }
+        key.cancel();
+        conn.session.disconnected(); // se il client non ha fatto logout l'utente torna disponibile per un nuovo login
+        try {
+            conn.channel.close();
+        } catch (IOException ex) { }
+    }
+
+    // Restituisce un buffer più grande con lo stesso contenuto (in modalità scrittura)
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+}
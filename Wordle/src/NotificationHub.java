@@ -0,0 +1,46 @@
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Classe che consegna le notifiche di condivisione ai client che le ricevono sulla propria connessione TCP (comando SUBSCRIBE),
+ * alternativa al gruppo multicast quando questo non è disponibile nella rete dei client.
+ * Il thread di invio della ShareRelay pubblica le notifiche a gruppi (gli stessi che raggruppa in un datagram multicast):
+ * ogni gruppo viene accodato in una sola volta nella coda di ogni sessione iscritta (vedi ClientSession.push), senza mai
+ * scrivere sulle socket. Le notifiche vengono poi inviate dal thread che gestisce la connessione, insieme alle risposte.
+ * Le code delle sessioni sono limitate (PUSH_QUEUE_SIZE): se un client non legge abbastanza velocemente vengono scartate
+ * le sue notifiche più vecchie, senza rallentare la consegna agli altri client.
+ */
+public class NotificationHub {
+
+    private static final Set<ClientSession> subscribers = ConcurrentHashMap.newKeySet();
+
+    public static void subscribe(ClientSession session) {
+        subscribers.add(session);
+    }
+
+    public static void unsubscribe(ClientSession session) {
+        subscribers.remove(session);
+    }
+
+    public static int getSubscribers() {
+        return subscribers.size();
+    }
+
+    /**
+     * Metodo che accoda un gruppo di notifiche a tutte le sessioni iscritte
+     * @param batch Le notifiche, nell'ordine di ricezione
+     */
+    public static void publish(List<ShareRecord> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        for (ClientSession session : subscribers) {
+            session.push(batch);
+        }
+    }
+}
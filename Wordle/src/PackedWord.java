@@ -0,0 +1,119 @@
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Classe di utilità che codifica una parola di al massimo 12 lettere minuscole in un long, 5 bit per lettera ('a' = 1, ..., 'z' = 26).
+ * La prima lettera occupa i bit più significativi e le posizioni non usate valgono 0, per cui l'ordinamento dei long
+ * coincide con l'ordinamento lessicografico delle parole: il vocabolario può quindi essere un long[] ordinato.
+ * Le parole del vocabolario fornito (10 lettere) occupano 50 bit.
+ */
+public class PackedWord {
+
+    public static final int MAX_LETTERS = 12;
+    public static final long INVALID = -1; // codifica di una stringa che non è una parola valida
+    public static final int BITS = 5; // bit per lettera
+    private static final long LETTER_MASK = 0x1F;
+    private static final long LOW_BITS = 0x0084210842108421L; // bit meno significativo di ognuno dei 12 campi da 5 bit
+
+    /**
+     * Metodo che codifica una parola letta direttamente da un buffer di byte (e.g: l'argomento di SENDWORD)
+     * @param buf    Il buffer che contiene la parola
+     * @param from   La posizione di inizio della parola nel buffer
+     * @param length La lunghezza della parola
+     * @return       La parola codificata, o INVALID se la parola è vuota, troppo lunga o contiene caratteri diversi da 'a'-'z'
+     */
+    public static long encode(byte[] buf, int from, int length) {
+        if (length == 0 || length > MAX_LETTERS) {
+            return INVALID;
+        }
+        long code = 0;
+        for (int i = 0; i < length; i++) {
+            int letter = buf[from + i] - 'a';
+            if (letter < 0 || letter >= 26) {
+                return INVALID;
+            }
+            code = (code << BITS) | (letter + 1);
+        }
+        return code << (BITS * (MAX_LETTERS - length));
+    }
+
+    /**
+     * Metodo che codifica una parola
+     * @param word La parola da codificare
+     * @return     La parola codificata, o INVALID se la parola non è valida
+     */
+    public static long encode(String word) {
+        if (word == null || word.length() == 0 || word.length() > MAX_LETTERS) {
+            return INVALID;
+        }
+        long code = 0;
+        for (int i = 0; i < word.length(); i++) {
+            int letter = word.charAt(i) - 'a';
+            if (letter < 0 || letter >= 26) {
+                return INVALID;
+            }
+            code = (code << BITS) | (letter + 1);
+        }
+        return code << (BITS * (MAX_LETTERS - word.length()));
+    }
+
+    /**
+     * Metodo che decodifica una parola
+     * @param code La parola codificata
+     * @return     La parola corrispondente
+     */
+    public static String decode(long code) {
+        char[] letters = new char[length(code)];
+        for (int i = 0; i < letters.length; i++) {
+            letters[i] = (char) ('a' - 1 + letterAt(code, i));
+        }
+        return new String(letters);
+    }
+
+    /**
+     * Metodo che restituisce il numero di lettere di una parola codificata
+     * @param code La parola codificata
+     * @return     Il numero di lettere
+     */
+    public static int length(long code) {
+        if (code == 0) {
+            return 0;
+        }
+        // le lettere sono allineate a sinistra: l'ultima lettera è il campo da 5 bit che contiene il bit meno significativo a 1
+        return MAX_LETTERS - Long.numberOfTrailingZeros(code) / BITS;
+    }
+
+    /**
+     * Metodo che restituisce la lettera in posizione i di una parola codificata
+     * @param code La parola codificata
+     * @param i    La posizione della lettera
+     * @return     La lettera ('a' = 1, ..., 'z' = 26), o 0 se la parola ha meno di i + 1 lettere
+     */
+    public static int letterAt(long code, int i) {
+        return (int) ((code >>> (BITS * (MAX_LETTERS - 1 - i))) & LETTER_MASK);
+    }
+
+    /**
+     * Metodo che restituisce la maschera dei bit occupati dalle prime n lettere di una parola codificata
+     * @param letters Il numero di lettere
+     * @return        La maschera
+     */
+    public static long prefixMask(int letters) {
+        return letters == 0 ? 0 : (-1L << (BITS * (MAX_LETTERS - letters))) & ((1L << (BITS * MAX_LETTERS)) - 1);
+    }
+
+    /**
+     * Metodo che individua le posizioni in cui due parole codificate hanno la stessa lettera, con un unico XOR
+     * (un campo da 5 bit della differenza è zero se e solo se le lettere coincidono)
+     * @param a La prima parola codificata
+     * @param b La seconda parola codificata
+     * @return  Una parola "codificata" in cui la lettera in posizione i vale 1 se le due parole coincidono in quella posizione
+     *          (vedi letterAt), 0 altrimenti; le posizioni oltre la fine di entrambe le parole valgono 1
+     */
+    public static long matchMask(long a, long b) {
+        long diff = a ^ b;
+        long nonZero = (diff | (diff >>> 1) | (diff >>> 2) | (diff >>> 3) | (diff >>> 4)) & LOW_BITS;
+        return ~nonZero & LOW_BITS;
+    }
+}
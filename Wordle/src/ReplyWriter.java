@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Classe che codifica le risposte del server in un buffer riusato per tutta la durata della connessione.
+ * Le risposte si accumulano nel buffer e vengono inviate al client con un'unica scrittura sulla socket (writeTo),
+ * in questo modo più richieste ricevute insieme producono una sola scrittura.
+ * Le sottoclassi definiscono la codifica: TextReplyWriter per il protocollo testuale, BinaryReplyWriter per quello binario.
+ */
+public abstract class ReplyWriter {
+
+    // Nomi degli esiti nel protocollo testuale, indicizzati con i codici definiti in BinaryProtocol
+    public static final String[] STATUS_NAMES = {
+        "SUCCESS", "DUPLICATE", "EMPTY", "NON_EXISTING_USER", "WRONG_PASSWORD", "ALREADY_LOGGED", "ERROR",
+        "ALREADY_PLAYED", "ALREADY_WON", "MAX_ATTEMPTS", "NOT_IN_VOCABULARY", "WIN", "CLUE", "LOSE", "STATISTICS", "UNKNOWN_COMMAND",
+        "NOTIFICATION", "SHARING", "TOO_LONG", "NOT_LOGGED"
+    };
+
+    public static final String NOTIFICATION_PREFIX = "NOTIFICATION:"; // inizio di una notifica inviata dal server senza richiesta
+    public static final String SHARING_PREFIX = "SHARING:"; // inizio della risposta a SHOWMESHARING
+
+    protected byte[] buf = new byte[256]; // risposte codificate non ancora inviate
+    protected int size = 0; // numero di byte validi nel buffer
+    private int written = 0; // numero di byte già inviati (con una socket non bloccante l'invio può essere parziale)
+
+    /**
+     * Metodo che codifica un esito senza ulteriori informazioni (e.g: SUCCESS, NOT_IN_VOCABULARY, ...)
+     * @param code Il codice dell'esito, definito in BinaryProtocol
+     */
+    public abstract void status(int code);
+
+    /**
+     * Metodo che codifica un esito a partire dal suo nome nel protocollo testuale (e.g: l'esito restituito da WordleServerMain.addUser)
+     * @param name Il nome dell'esito
+     */
+    public void status(String name) {
+        for (int code = 0; code < STATUS_NAMES.length; code++) {
+            if (STATUS_NAMES[code].equals(name)) {
+                status(code);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("esito sconosciuto: " + name);
+    }
+
+    /**
+     * Metodo che codifica la vittoria di una partita
+     * @param attempts Il numero di tentativi impiegati
+     */
+    public abstract void win(int attempts);
+
+    /**
+     * Metodo che codifica gli indizi relativi a una guessed word
+     * @param clue      Gli indizi, un simbolo ('X', '?', '+') per lettera
+     * @param letters   Il numero di lettere della guessed word
+     * @param remaining Il numero di tentativi ancora disponibili
+     */
+    public abstract void clue(byte[] clue, int letters, int remaining);
+
+    /**
+     * Metodo che codifica la sconfitta in una partita, con gli indizi relativi all'ultimo tentativo
+     * @param clue       Gli indizi, un simbolo ('X', '?', '+') per lettera
+     * @param letters    Il numero di lettere della guessed word
+     * @param secretWord La parola segreta che non è stata indovinata
+     */
+    public abstract void lose(byte[] clue, int letters, String secretWord);
+
+    /**
+     * Metodo che codifica le statistiche di un utente
+     * @param user L'utente di cui inviare le statistiche
+     */
+    public abstract void statistics(User user);
+
+    /**
+     * Metodo invocato per un comando non riconosciuto
+     */
+    public abstract void unknownCommand();
+
+    /**
+     * Metodo che codifica una notifica di condivisione inviata al client senza una richiesta (dopo SUBSCRIBE)
+     * @param record Il risultato condiviso da un utente
+     */
+    public abstract void notification(ShareRecord record);
+
+    /**
+     * Metodo che codifica la risposta a SHOWMESHARING
+     * @param cursor  Il numero di sequenza da indicare nella richiesta successiva
+     * @param records I risultati condivisi successivi al numero di sequenza richiesto, dal più vecchio
+     */
+    public abstract void sharing(long cursor, List<ShareRecord> records);
+
+    /**
+     * Metodo che indica se ci sono risposte non ancora inviate
+     * @return True se il buffer contiene byte da inviare, false altrimenti
+     */
+    public boolean hasPending() {
+        return written < size;
+    }
+
+    /**
+     * Metodo che invia tutte le risposte accumulate su uno stream bloccante
+     * @param out Lo stream associato alla socket
+     * @throws IOException se si verifica un errore durante la scrittura
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, written, size - written);
+        size = written = 0;
+    }
+
+    /**
+     * Metodo che invia quanto possibile delle risposte accumulate su una channel non bloccante
+     * @param channel La channel associata al client
+     * @return        True se tutte le risposte sono state inviate, false se resta qualcosa da inviare
+     * @throws IOException se si verifica un errore durante la scrittura
+     */
+    public boolean writeTo(SocketChannel channel) throws IOException {
+        ByteBuffer pending = ByteBuffer.wrap(buf, written, size - written);
+        channel.write(pending);
+        written = pending.position();
+        if (written < size) {
+            return false;
+        }
+        size = written = 0;
+        return true;
+    }
+
+    // Metodi di utilità per le sottoclassi
+
+    protected void ensureCapacity(int needed) {
+        if (size + needed > buf.length) {
+            byte[] bigger = new byte[Math.max(buf.length * 2, size + needed)];
+            System.arraycopy(buf, 0, bigger, 0, size);
+            buf = bigger;
+        }
+    }
+
+    protected void put(int b) {
+        ensureCapacity(1);
+        buf[size++] = (byte) b;
+    }
+
+    protected void put(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buf, size, bytes.length);
+        size += bytes.length;
+    }
+
+    protected void put(String s) {
+        put(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Scrive un intero non negativo in base 10 senza creare stringhe
+    protected void putDecimal(int value) {
+        if (value >= 10) {
+            putDecimal(value / 10);
+        }
+        put('0' + value % 10);
+    }
+}
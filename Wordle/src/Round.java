@@ -0,0 +1,90 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Classe immutabile che rappresenta un turno di gioco: la secret word estratta e il numero progressivo (epoch) del turno.
+ * Il server pubblica il turno corrente con un unico riferimento, in modo che chi lo legge veda sempre parola ed epoch coerenti.
+ * Il turno contiene anche la cache degli indizi calcolati per la sua secret word, che viene quindi invalidata
+ * in modo atomico alla pubblicazione del turno successivo, i contatori delle partite vinte e perse nel turno e il log
+ * dei risultati condivisi nel turno (vedi ShareLog).
+ */
+public class Round {
+
+    private final long epoch; // cresce di 1 a ogni nuova parola estratta, anche tra un riavvio e l'altro del server
+    private final long secretCode; // la secret word codificata (vedi PackedWord)
+    private final String secretWord;
+    private final ClueEngine engine; // calcolo degli indizi, con la tabella delle occorrenze delle lettere della secret word
+    private final ClueCache clues;
+    private final LongAdder gamesWon = new LongAdder();
+    private final LongAdder gamesLost = new LongAdder();
+    private final ShareLog shares;
+
+    /**
+     * @param epoch         Il numero progressivo del turno
+     * @param secretCode    La secret word codificata
+     * @param clueCacheSize La capacità della cache degli indizi (0 per disabilitarla)
+     * @param shareLogSize  Il numero di risultati condivisi mantenuti nel log del turno (0 per disabilitarlo)
+     */
+    public Round(long epoch, long secretCode, int clueCacheSize, int shareLogSize) {
+        this.epoch = epoch;
+        this.secretCode = secretCode;
+        this.secretWord = PackedWord.decode(secretCode);
+        this.engine = new ClueEngine(secretCode);
+        this.clues = new ClueCache(clueCacheSize);
+        this.shares = new ShareLog(epoch, shareLogSize);
+    }
+
+    /**
+     * Metodo che scrive gli indizi relativi a una guessed word, riusando quelli già calcolati nel turno se presenti
+     * @param guess La guessed word codificata (vedi PackedWord)
+     * @param clue  Il buffer in cui scrivere gli indizi, un simbolo per lettera
+     * @return      Il numero di lettere della guessed word (e quindi di indizi scritti)
+     */
+    public int clue(long guess, byte[] clue) {
+        int letters = clues.get(guess, clue);
+        if (letters < 0) {
+            letters = engine.clue(guess, clue);
+            clues.put(guess, clue, letters);
+        }
+        return letters;
+    }
+
+    /**
+     * Metodo che conta una partita del turno conclusa (vedi ServerMetrics.recordGame)
+     * @param won True se la partita è stata vinta, false se persa
+     */
+    public void recordGame(boolean won) {
+        (won ? gamesWon : gamesLost).increment();
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getSecretCode() {
+        return secretCode;
+    }
+
+    public String getSecretWord() {
+        return secretWord;
+    }
+
+    public ClueCache getClueCache() {
+        return clues;
+    }
+
+    public ShareLog getShareLog() {
+        return shares;
+    }
+
+    public long getGamesWon() {
+        return gamesWon.sum();
+    }
+
+    public long getGamesLost() {
+        return gamesLost.sum();
+    }
+}
@@ -0,0 +1,210 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Classe che implementa il log asincrono dei thread che gestiscono i client (connessioni, comandi ricevuti, notifiche inoltrate).
+ * Scrivere direttamente su System.out, che è sincronizzato, serializzerebbe tutti i thread su un unico lock: invece ogni
+ * evento viene inserito in un ring buffer limitato e senza lock (più produttori, un consumatore), e un thread in background
+ * li scrive a blocchi sul file di log, con un'unica flush per blocco.
+ * Il costo per il thread che registra un evento è la costruzione del messaggio, una compare-and-set e tre scritture;
+ * se il buffer è pieno l'evento viene scartato (il thread non resta mai in attesa) e gli eventi scartati vengono contati.
+ * Per ogni livello si può registrare solo un evento ogni N (campionamento), in modo da ridurre il volume del log sotto carico:
+ * i chiamanti controllano enabled(livello) prima di costruire il messaggio, per non pagarne il costo se l'evento non va registrato.
+ * Finchè il log non è avviato con start() nessun evento viene registrato.
+ */
+public class ServerLog {
+
+    // Livelli di log
+    public static final int INFO = 0; // connessioni e disconnessioni dei client
+    public static final int DEBUG = 1; // comandi ricevuti e notifiche inoltrate
+    private static final String[] LEVEL_NAMES = {"INFO", "DEBUG"};
+
+    private static final int BATCH = 256; // numero massimo di eventi scritti tra una flush e la successiva
+
+    private static volatile boolean running = false;
+    private static int[] sampleEvery = {1, 1}; // per ogni livello: 1 = tutti gli eventi, N = uno ogni N in media, 0 = nessuno
+
+    // Ring buffer: l'evento in posizione i & mask è pubblicato quando sequences[i & mask] == i + 1
+    private static int mask;
+    private static AtomicLongArray sequences;
+    private static String[] messages;
+    private static int[] levels;
+    private static long[] times;
+    private static final AtomicLong tail = new AtomicLong(); // prossima posizione da assegnare a un produttore
+    private static long head; // prossima posizione da leggere, usata solo dal thread di scrittura
+
+    private static final LongAdder dropped = new LongAdder(); // eventi scartati perchè il buffer era pieno
+    private static Thread writerThread;
+
+    /**
+     * Metodo che avvia il log e il thread che scrive gli eventi su file
+     * @param file        Il file di log (gli eventi vengono aggiunti in fondo)
+     * @param capacity    La capacità del ring buffer, arrotondata alla potenza di 2 successiva
+     * @param sampleInfo  Frequenza di campionamento degli eventi INFO (1 per registrarli tutti, 0 per nessuno)
+     * @param sampleDebug Frequenza di campionamento degli eventi DEBUG (1 per registrarli tutti, 0 per nessuno)
+     * @throws IOException se non è possibile aprire il file di log
+     */
+    public static synchronized void start(String file, int capacity, int sampleInfo, int sampleDebug) throws IOException {
+        if (running) {
+            return;
+        }
+        int size = 2;
+        while (size < capacity && size < (1 << 30)) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i); // posizione libera per l'evento numero i
+        }
+        messages = new String[size];
+        levels = new int[size];
+        times = new long[size];
+        sampleEvery = new int[]{sampleInfo, sampleDebug};
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8), 64 * 1024);
+        writerThread = new Thread(() -> writeLoop(out), "server-log");
+        writerThread.setDaemon(true);
+        running = true;
+        writerThread.start();
+        System.out.println("[DEBUG] Log dei client scritto in " + file + " (campionamento INFO 1/" + sampleInfo + ", DEBUG 1/" + sampleDebug + ")");
+    }
+
+    /**
+     * Metodo che indica se un evento del livello indicato va registrato, applicando il campionamento del livello
+     * @param level Il livello dell'evento
+     * @return      True se l'evento va registrato con log()
+     */
+    public static boolean enabled(int level) {
+        if (!running) {
+            return false;
+        }
+        int every = sampleEvery[level];
+        return every == 1 || (every > 1 && ThreadLocalRandom.current().nextInt(every) == 0);
+    }
+
+    /**
+     * Metodo che accoda un evento per il thread di scrittura, senza mai bloccare il chiamante
+     * @param level   Il livello dell'evento
+     * @param message Il messaggio
+     */
+    public static void log(int level, String message) {
+        if (!running) {
+            return;
+        }
+        long pos = tail.get();
+        int index;
+        while (true) {
+            index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) { // posizione libera: provo ad assegnarla a questo evento
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) { // la posizione contiene ancora un evento non scritto: buffer pieno
+                dropped.increment();
+                return;
+            } else { // un altro produttore ha già preso la posizione
+                pos = tail.get();
+            }
+        }
+        messages[index] = message;
+        levels[index] = level;
+        times[index] = System.currentTimeMillis();
+        sequences.lazySet(index, pos + 1); // pubblico l'evento al thread di scrittura
+    }
+
+    // Numero di eventi scartati perchè il buffer era pieno
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Metodo che ferma il log, attendendo che il thread di scrittura scriva gli eventi già accodati
+     */
+    public static void close() {
+        Thread writer;
+        synchronized (ServerLog.class) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            writer = writerThread;
+        }
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Ciclo del thread di scrittura: scrive a blocchi gli eventi pubblicati e attende brevemente quando non ce ne sono
+    private static void writeLoop(Writer out) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        Date date = new Date();
+        long reportedDrops = 0;
+        try {
+            while (true) {
+                boolean stopping = !running; // letto prima di svuotare il buffer, in modo da scrivere anche gli ultimi eventi
+                int written = 0;
+                while (written < BATCH) {
+                    int index = (int) (head & mask);
+                    if (sequences.get(index) != head + 1) {
+                        break; // nessun altro evento pubblicato
+                    }
+                    date.setTime(times[index]);
+                    out.write(format.format(date));
+                    out.write(' ');
+                    out.write(LEVEL_NAMES[levels[index]]);
+                    out.write(' ');
+                    out.write(messages[index]);
+                    out.write('\n');
+                    messages[index] = null;
+                    sequences.lazySet(index, head + mask + 1); // la posizione torna libera per il giro successivo del buffer
+                    head++;
+                    written++;
+                }
+
+                long drops = dropped.sum();
+                if (drops != reportedDrops) {
+                    out.write("[LOG] " + (drops - reportedDrops) + " eventi scartati (buffer pieno)\n");
+                    reportedDrops = drops;
+                }
+                if (written > 0) {
+                    out.flush();
+                }
+                if (written < BATCH) { // buffer svuotato
+                    if (stopping) {
+                        break;
+                    }
+                    LockSupport.parkNanos(1_000_000L);
+                }
+            }
+        } catch (IOException ex) {
+            System.err.println("Errore nella scrittura del log dei client.");
+            ex.printStackTrace();
+            running = false;
+        } finally {
+            try {
+                out.close();
+            } catch (IOException ex) { }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Classe che raccoglie le metriche del server: richieste e latenze per comando, client connessi, parole non presenti
+ * nel vocabolario, partite vinte e perse, notifiche inoltrate al gruppo multicast e sulle connessioni dei client, durata degli snapshot degli utenti.
+ * Tutti i contatori sono concorrenti e non acquisiscono lock (LongAdder, AtomicInteger, LatencyHistogram), per cui
+ * possono essere aggiornati dai thread che gestiscono i client con un costo trascurabile.
+ * Le metriche sono esposte in formato testuale (lo stesso di Prometheus) dall'endpoint di amministrazione del server
+ * (vedi WordleServerMain.handleAdmin).
+ */
+public class ServerMetrics {
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999, 1.0};
+
+    // Latenza di elaborazione di ogni comando, indicizzata dal codice del comando (vedi Command)
+    private static final LatencyHistogram[] requests = new LatencyHistogram[Command.SHARE + 1];
+    private static final LatencyHistogram fullSnapshots = new LatencyHistogram();
+    private static final LatencyHistogram deltaSnapshots = new LatencyHistogram();
+
+    private static final AtomicInteger connectedClients = new AtomicInteger();
+    private static final AtomicInteger connections = new AtomicInteger(); // connessioni accettate dall'avvio, usato anche come identificativo dei client
+    private static final LongAdder vocabularyMisses = new LongAdder();
+    private static final LongAdder gamesWon = new LongAdder();
+    private static final LongAdder gamesLost = new LongAdder();
+    private static final LongAdder multicastRelayed = new LongAdder(); // notifiche inoltrate
+    private static final LongAdder multicastDatagrams = new LongAdder(); // datagram inviati, ognuno con una o più notifiche
+    private static final LongAdder multicastDropped = new LongAdder(); // notifiche scartate
+    private static final LongAdder sharesInvalid = new LongAdder(); // richieste di condivisione senza una partita conclusa nel turno corrente
+    private static final LongAdder sharesDuplicate = new LongAdder(); // richieste di condivisione di un risultato già condiviso
+    private static final LongAdder pushDelivered = new LongAdder(); // notifiche inviate sulle connessioni dei client (SUBSCRIBE)
+    private static final LongAdder pushDropped = new LongAdder(); // notifiche scartate dalle code piene dei client lenti
+
+    static {
+        for (int op = 0; op < requests.length; op++) {
+            requests[op] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Metodo che registra l'elaborazione di un comando
+     * @param op    Il codice del comando (vedi Command)
+     * @param nanos Il tempo di elaborazione in ns
+     */
+    public static void recordRequest(int op, long nanos) {
+        requests[op >= 0 && op < requests.length ? op : Command.UNKNOWN].record(nanos);
+    }
+
+    /**
+     * Metodo che registra la durata di uno snapshot degli utenti
+     * @param full  True se lo snapshot è completo, false se incrementale
+     * @param nanos La durata in ns
+     */
+    public static void recordSnapshot(boolean full, long nanos) {
+        (full ? fullSnapshots : deltaSnapshots).record(nanos);
+    }
+
+    /**
+     * Metodo che registra l'esito di una partita, sia nel totale sia nel turno a cui appartiene
+     * @param round Il turno della partita
+     * @param won   True se la partita è stata vinta, false se persa
+     */
+    public static void recordGame(Round round, boolean won) {
+        (won ? gamesWon : gamesLost).increment();
+        round.recordGame(won);
+    }
+
+    /**
+     * Metodo che registra una nuova connessione
+     * @return L'identificativo del client connesso
+     */
+    public static int clientConnected() {
+        connectedClients.incrementAndGet();
+        return connections.getAndIncrement();
+    }
+
+    public static void clientDisconnected() {
+        connectedClients.decrementAndGet();
+    }
+
+    public static void vocabularyMiss() {
+        vocabularyMisses.increment();
+    }
+
+    /**
+     * Metodo che registra l'invio di un datagram al gruppo multicast
+     * @param notifications Il numero di notifiche contenute nel datagram
+     */
+    public static void multicastRelayed(int notifications) {
+        multicastRelayed.add(notifications);
+        multicastDatagrams.increment();
+    }
+
+    public static void multicastDropped(int notifications) {
+        multicastDropped.add(notifications);
+    }
+
+    /**
+     * Metodo che registra le notifiche accodate per l'invio sulla connessione di un client
+     * @param notifications Il numero di notifiche
+     */
+    public static void pushDelivered(int notifications) {
+        pushDelivered.add(notifications);
+    }
+
+    /**
+     * Metodo che registra le notifiche scartate dalla coda di un client che non le legge abbastanza velocemente
+     * @param notifications Il numero di notifiche scartate
+     */
+    public static void pushDropped(int notifications) {
+        pushDropped.add(notifications);
+    }
+
+    /**
+     * Metodo che registra una richiesta di condivisione scartata
+     * @param duplicate True se il risultato era già stato condiviso, false se l'utente non ha una partita conclusa nel turno corrente
+     */
+    public static void shareRejected(boolean duplicate) {
+        (duplicate ? sharesDuplicate : sharesInvalid).increment();
+    }
+
+    /**
+     * Metodo che restituisce tutte le metriche nel formato testuale di Prometheus (una metrica per riga, durate in secondi)
+     * @return Il testo con le metriche
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+
+        out.append("# HELP wordle_request_duration_seconds Tempo di elaborazione dei comandi ricevuti dai client.\n");
+        out.append("# TYPE wordle_request_duration_seconds summary\n");
+        for (int op = 0; op < requests.length; op++) {
+            summary(out, "wordle_request_duration_seconds", "op=\"" + CommandParser.opName(op) + "\"", requests[op]);
+        }
+
+        out.append("# HELP wordle_snapshot_duration_seconds Durata degli snapshot degli utenti.\n");
+        out.append("# TYPE wordle_snapshot_duration_seconds summary\n");
+        summary(out, "wordle_snapshot_duration_seconds", "type=\"full\"", fullSnapshots);
+        summary(out, "wordle_snapshot_duration_seconds", "type=\"delta\"", deltaSnapshots);
+
+        metric(out, "wordle_connected_clients", "gauge", "Client attualmente connessi.", connectedClients.get());
+        metric(out, "wordle_connections_total", "counter", "Connessioni accettate dall'avvio del server.", connections.get());
+        metric(out, "wordle_vocabulary_misses_total", "counter", "Guessed word non presenti nel vocabolario.", vocabularyMisses.sum());
+        metric(out, "wordle_games_won_total", "counter", "Partite vinte dall'avvio del server.", gamesWon.sum());
+        metric(out, "wordle_games_lost_total", "counter", "Partite perse dall'avvio del server.", gamesLost.sum());
+        metric(out, "wordle_multicast_relayed_total", "counter", "Notifiche inoltrate al gruppo multicast.", multicastRelayed.sum());
+        metric(out, "wordle_multicast_datagrams_total", "counter", "Datagram inviati al gruppo multicast.", multicastDatagrams.sum());
+        metric(out, "wordle_multicast_dropped_total", "counter", "Notifiche scartate (coda di invio piena o errore di invio).", multicastDropped.sum());
+        out.append("# HELP wordle_shares_rejected_total Richieste di condivisione scartate dal server.\n");
+        out.append("# TYPE wordle_shares_rejected_total counter\n");
+        out.append("wordle_shares_rejected_total{reason=\"invalid\"} ").append(sharesInvalid.sum()).append('\n');
+        out.append("wordle_shares_rejected_total{reason=\"duplicate\"} ").append(sharesDuplicate.sum()).append('\n');
+        metric(out, "wordle_push_subscribers", "gauge", "Client che ricevono le notifiche sulla propria connessione.", NotificationHub.getSubscribers());
+        metric(out, "wordle_push_delivered_total", "counter", "Notifiche inviate sulle connessioni dei client.", pushDelivered.sum());
+        metric(out, "wordle_push_dropped_total", "counter", "Notifiche scartate perchè la coda del client era piena.", pushDropped.sum());
+        metric(out, "wordle_log_dropped_total", "counter", "Eventi di log scartati perchè il buffer era pieno.", ServerLog.getDropped());
+
+        Round round = WordleServerMain.getCurrentRound();
+        if (round != null) {
+            metric(out, "wordle_round_epoch", "gauge", "Epoch del turno corrente.", round.getEpoch());
+            metric(out, "wordle_round_games_won", "gauge", "Partite vinte nel turno corrente.", round.getGamesWon());
+            metric(out, "wordle_round_games_lost", "gauge", "Partite perse nel turno corrente.", round.getGamesLost());
+            metric(out, "wordle_round_clue_cache_hits", "gauge", "Hit della cache degli indizi nel turno corrente.", round.getClueCache().getHits());
+            metric(out, "wordle_round_clue_cache_misses", "gauge", "Miss della cache degli indizi nel turno corrente.", round.getClueCache().getMisses());
+        }
+        return out.toString();
+    }
+
+    private static void metric(StringBuilder out, String name, String type, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        for (double quantile : QUANTILES) {
+            out.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+               .append(histogram.percentile(quantile) / 1e9).append('\n');
+        }
+        out.append(name).append("_sum{").append(labels).append("} ").append(histogram.getSum() / 1e9).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+}
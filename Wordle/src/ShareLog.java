@@ -0,0 +1,110 @@
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Classe che mantiene in memoria gli ultimi risultati condivisi in un turno, ognuno con un numero di sequenza crescente.
+ * I client li richiedono con SHOWMESHARING indicando l'ultimo numero di sequenza già ricevuto, e ottengono solo quelli successivi:
+ * a differenza del multicast nessuna notifica va persa (finchè resta nel log) e un client inattivo non costa nulla al server.
+ * Il log è un buffer circolare di capacità fissa (SHARE_LOG_SIZE): quando è pieno i risultati più vecchi vengono sovrascritti.
+ * Un solo thread aggiunge risultati (il thread di invio della ShareRelay), mentre i thread delle connessioni li leggono
+ * senza acquisire lock: ogni posizione contiene il proprio numero di sequenza, per cui un lettore riconosce e salta
+ * le posizioni sovrascritte nel frattempo.
+ * I numeri di sequenza sono unici per tutta la vita del server, anche tra un turno e l'altro, per cui il cursore di un client
+ * resta valido al cambio di turno (e i risultati del turno precedente non vengono più restituiti).
+ */
+public class ShareLog {
+
+    public static final int MAX_FETCH = 64; // numero massimo di risultati restituiti da una richiesta (un frame binario resta sotto i 64 KB)
+
+    private static final AtomicLong sequence = new AtomicLong(); // ultimo numero di sequenza assegnato, per tutti i turni
+
+    // Risultato memorizzato nel log con il suo numero di sequenza
+    private static class Entry {
+        final long seq;
+        final ShareRecord record;
+
+        Entry(long seq, ShareRecord record) {
+            this.seq = seq;
+            this.record = record;
+        }
+    }
+
+    private final long epoch; // turno dei risultati memorizzati
+    private final long first; // numero di sequenza del primo risultato del turno
+    private final int mask;
+    private final AtomicReferenceArray<Entry> slots; // null se il log è disabilitato
+    private volatile long latest; // numero di sequenza dell'ultimo risultato aggiunto (pubblicato dopo la scrittura della posizione)
+
+    /**
+     * @param epoch    Il turno di cui memorizzare i risultati
+     * @param capacity Il numero di risultati memorizzati, arrotondato alla potenza di 2 successiva (0 per disabilitare il log)
+     */
+    public ShareLog(long epoch, int capacity) {
+        this.epoch = epoch;
+        int size = 1;
+        while (size < capacity && size < (1 << 24)) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.slots = capacity > 0 ? new AtomicReferenceArray<>(size) : null;
+        this.latest = sequence.get();
+        this.first = latest + 1;
+    }
+
+    /**
+     * Metodo che aggiunge un gruppo di risultati al log, da invocare da un solo thread. I risultati di altri turni vengono ignorati.
+     * @param batch I risultati, nell'ordine di ricezione
+     */
+    public void append(List<ShareRecord> batch) {
+        if (slots == null) {
+            return;
+        }
+        for (ShareRecord record : batch) {
+            if (record.getEpoch() != epoch) {
+                continue; // condiviso prima del cambio di turno
+            }
+            long seq = sequence.incrementAndGet();
+            slots.set((int) (seq & mask), new Entry(seq, record));
+            latest = seq;
+        }
+    }
+
+    /**
+     * Metodo che restituisce i risultati successivi a un numero di sequenza, al massimo MAX_FETCH
+     * @param after L'ultimo numero di sequenza già ricevuto dal client (0 all'inizio)
+     * @param out   La lista (svuotata dal chiamante) a cui aggiungere i risultati, dal più vecchio
+     * @return      Il numero di sequenza da indicare nella richiesta successiva
+     */
+    public long fetch(long after, List<ShareRecord> out) {
+        long last = latest;
+        if (slots == null || after == last) {
+            return after;
+        }
+        if (after > last) { // cursore di un'esecuzione precedente del server: riparto dall'inizio
+            after = 0;
+        }
+        long cursor = after;
+        for (long seq = Math.max(Math.max(after + 1, first), last - mask); seq <= last && out.size() < MAX_FETCH; seq++) {
+            Entry entry = slots.get((int) (seq & mask));
+            if (entry != null && entry.seq == seq) { // altrimenti posizione sovrascritta da un risultato più recente, o di un altro turno
+                out.add(entry.record);
+            }
+            cursor = seq;
+        }
+        return cursor;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    // Numero di sequenza dell'ultimo risultato aggiunto al log
+    public long getLatest() {
+        return latest;
+    }
+}
@@ -0,0 +1,161 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Classe immutabile che rappresenta il risultato di una partita conclusa, nella forma in cui il server lo inoltra al gruppo
+ * multicast quando l'utente lo condivide. Il record è codificato dal server con i dati della partita (e non con quelli inviati
+ * dal client), in forma compatta:
+ * [lunghezza username u8][username UTF-8][epoch del turno u32][vinta (bit 7) | tentativi (bit 0-3) u8][lettere u8][griglia]
+ * dove la griglia contiene gli indizi di tutti i tentativi, una riga per tentativo, a 2 bit per casella (vedi BinaryProtocol.markCode)
+ * e 4 caselle per byte. Un datagram multicast inizia con DATAGRAM_HEADER (il cui primo byte è 0, con cui una notifica testuale
+ * non inizia mai) ed è seguito da uno o più record.
+ * La griglia viene costruita durante la partita con setRow, in un buffer della sessione lungo GRID_BYTES, e il record
+ * codificato una sola volta a fine partita: l'inoltro di una condivisione costa solo la copia dei suoi byte.
+ * Lo stesso record viene inviato anche ai client che ricevono le notifiche sulla propria connessione (vedi NotificationHub).
+ */
+public class ShareRecord {
+
+    public static final byte[] DATAGRAM_HEADER = {0x00, 0x01}; // versione 1 del formato
+    public static final int GRID_BYTES = (User.MAX_ATTEMPTS * PackedWord.MAX_LETTERS + 3) / 4;
+    private static final char[] MARKS = {'X', '?', '+'};
+
+    private final long epoch;
+    private final byte[] record; // il record codificato
+    private volatile String text; // forma testuale, calcolata alla prima richiesta (vedi getText)
+
+    private ShareRecord(long epoch, byte[] record) {
+        this.epoch = epoch;
+        this.record = record;
+    }
+
+    /**
+     * Metodo che codifica il risultato di una partita conclusa
+     * @param username Il nome dell'utente
+     * @param epoch    L'epoch del turno della partita
+     * @param won      True se la partita è stata vinta
+     * @param attempts Il numero di tentativi (righe della griglia)
+     * @param letters  Il numero di lettere della secret word (caselle per riga)
+     * @param grid     La griglia costruita con setRow (viene copiata)
+     * @return         Il record, o null se l'username è più lungo di 255 byte in UTF-8 (risultato non condivisibile)
+     */
+    public static ShareRecord of(String username, long epoch, boolean won, int attempts, int letters, byte[] grid) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        if (name.length > 0xFF) {
+            return null;
+        }
+        int gridBytes = (attempts * letters + 3) / 4;
+        byte[] out = new byte[1 + name.length + 4 + 2 + gridBytes];
+        int pos = 0;
+        out[pos++] = (byte) name.length;
+        System.arraycopy(name, 0, out, pos, name.length);
+        pos += name.length;
+        out[pos++] = (byte) (epoch >>> 24);
+        out[pos++] = (byte) (epoch >>> 16);
+        out[pos++] = (byte) (epoch >>> 8);
+        out[pos++] = (byte) epoch;
+        out[pos++] = (byte) ((won ? 0x80 : 0) | attempts);
+        out[pos++] = (byte) letters;
+        System.arraycopy(grid, 0, out, pos, gridBytes);
+        return new ShareRecord(epoch, out);
+    }
+
+    /**
+     * Metodo che scrive nella griglia la riga degli indizi di un tentativo
+     * @param grid    La griglia, lunga GRID_BYTES e azzerata a inizio partita
+     * @param row     L'indice del tentativo (da 0)
+     * @param letters Il numero di caselle per riga
+     * @param clue    Gli indizi del tentativo ('+', '?', 'X'), o null se il tentativo ha indovinato la secret word (tutti '+')
+     * @param length  Il numero di indizi in clue (le caselle in più restano 'X', quelle in meno vengono ignorate)
+     */
+    public static void setRow(byte[] grid, int row, int letters, byte[] clue, int length) {
+        for (int i = 0; i < letters; i++) {
+            int code = clue == null ? 2 : (i < length ? BinaryProtocol.markCode(clue[i]) : 0);
+            int cell = row * letters + i;
+            grid[cell / 4] |= code << (2 * (cell % 4));
+        }
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    // Restituisce il record codificato, che non va modificato
+    public byte[] getBytes() {
+        return record;
+    }
+
+    /**
+     * Metodo che restituisce la notifica nella forma testuale, usata per l'invio sulla connessione dei client che usano il
+     * protocollo testuale (vedi ReplyWriter.notification). Viene calcolata alla prima richiesta e poi riusata per tutti i client.
+     * @return La notifica nella forma "username:WIN:ATTEMPTS:{[+, X, ...],[...]}"
+     */
+    public String getText() {
+        String cached = text;
+        if (cached == null) {
+            List<String> decoded = new ArrayList<>(1);
+            decodeRecord(record, 0, record.length, decoded);
+            text = cached = decoded.get(0);
+        }
+        return cached;
+    }
+
+    /**
+     * Metodo che decodifica i record di un datagram multicast, da usare lato client
+     * @param buf    Il buffer con il datagram
+     * @param length La lunghezza del datagram
+     * @return       Le notifiche nella forma testuale "username:WIN:ATTEMPTS:{[+, X, ...],[...]}", o null se il datagram
+     *               non inizia con DATAGRAM_HEADER (notifica testuale)
+     */
+    public static List<String> decode(byte[] buf, int length) {
+        if (length < DATAGRAM_HEADER.length || buf[0] != DATAGRAM_HEADER[0] || buf[1] != DATAGRAM_HEADER[1]) {
+            return null;
+        }
+        List<String> notifications = new ArrayList<>();
+        int pos = DATAGRAM_HEADER.length;
+        while (pos < length) {
+            pos = decodeRecord(buf, pos, length, notifications);
+        }
+        return notifications;
+    }
+
+    /**
+     * Metodo che decodifica un singolo record nella forma testuale
+     * @param buf           Il buffer che contiene il record
+     * @param pos           La posizione di inizio del record
+     * @param length        La posizione di fine (esclusa) dei dati validi nel buffer
+     * @param notifications La lista a cui aggiungere la notifica decodificata
+     * @return              La posizione successiva al record, o length se il record è troncato
+     */
+    public static int decodeRecord(byte[] buf, int pos, int length, List<String> notifications) {
+        int nameLength = buf[pos++] & 0xFF;
+        if (pos + nameLength + 6 > length) {
+            return length; // record troncato
+        }
+        String username = new String(buf, pos, nameLength, StandardCharsets.UTF_8);
+        pos += nameLength + 4; // l'epoch non viene mostrato
+        boolean won = (buf[pos] & 0x80) != 0;
+        int attempts = buf[pos++] & 0x0F;
+        int letters = buf[pos++] & 0xFF;
+        if (pos + (attempts * letters + 3) / 4 > length) {
+            return length;
+        }
+
+        StringBuilder notification = new StringBuilder(username).append(won ? ":WIN" : ":LOSE").append(":ATTEMPTS:{");
+        char[] row = new char[letters];
+        for (int r = 0; r < attempts; r++) {
+            for (int i = 0; i < letters; i++) {
+                int cell = r * letters + i;
+                row[i] = MARKS[Math.min(2, (buf[pos + cell / 4] >>> (2 * (cell % 4))) & 0x3)];
+            }
+            notification.append(r > 0 ? "," : "").append(Arrays.toString(row));
+        }
+        notifications.add(notification.append('}').toString());
+        return pos + (attempts * letters + 3) / 4;
+    }
+}
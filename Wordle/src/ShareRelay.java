@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Classe che inoltra i risultati delle partite che i client condividono con il comando SHARE al gruppo multicast
+ * e ai client che le ricevono sulla propria connessione (vedi NotificationHub).
+ * La richiesta arriva sulla connessione TCP dell'utente autenticato: il risultato codificato dal server al termine della
+ * partita (vedi ShareRecord, immutabile) viene accodato per riferimento al thread di invio (sendLoop) con submit().
+ * Il thread di invio raggruppa le notifiche arrivate entro una breve finestra di tempo (o già in coda) finchè non viene
+ * raggiunta la dimensione massima del datagram: ogni gruppo viene aggiunto al log del turno (vedi ShareLog), inviato con
+ * un unico datagram multicast, dopo ShareRecord.DATAGRAM_HEADER, e pubblicato con un'unica chiamata a NotificationHub.
+ * Alla fine di un turno, quando molti utenti condividono il risultato contemporaneamente, vengono inviati pochi datagram
+ * invece di uno per notifica.
+ * Se la coda verso il thread di invio è piena (il thread non riesce a stare al passo) la notifica viene scartata
+ * e contata in ServerMetrics, come quelle il cui invio fallisce.
+ */
+public class ShareRelay {
+
+    private final DatagramChannel out; // invia le notifiche al gruppo multicast, null se l'inoltro multicast è disabilitato
+    private final InetSocketAddress group;
+    private final int maxDatagram; // dimensione massima di un datagram inviato
+    private final long windowNanos; // tempo massimo di attesa di altre notifiche da raggruppare con la prima
+    private final ArrayBlockingQueue<ShareRecord> pending; // notifiche accodate e non ancora inviate
+
+    /**
+     * @param groupAddress   L'indirizzo del gruppo multicast, o null per inoltrare le notifiche solo sulle connessioni dei client
+     * @param groupPort      La porta del gruppo multicast
+     * @param buffers        Il numero massimo di notifiche in attesa di essere inviate
+     * @param maxDatagram    La dimensione massima in byte di un datagram inviato (almeno 512)
+     * @param coalesceMillis La finestra in ms entro cui raggruppare le notifiche (0 per raggruppare solo quelle già in coda)
+     * @throws IOException se non è possibile aprire la DatagramChannel o l'indirizzo non è di un gruppo multicast
+     */
+    public ShareRelay(String groupAddress, int groupPort, int buffers, int maxDatagram, int coalesceMillis) throws IOException {
+        if (groupAddress != null) {
+            InetAddress address = InetAddress.getByName(groupAddress);
+            if (!address.isMulticastAddress()) {
+                throw new IOException("Indirizzo multicast non valido: " + address.getHostAddress());
+            }
+            this.group = new InetSocketAddress(address, groupPort);
+        } else {
+            this.group = null;
+        }
+        this.maxDatagram = Math.max(maxDatagram, 512); // deve contenere almeno un record (username di al massimo 255 byte)
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(coalesceMillis);
+        this.pending = new ArrayBlockingQueue<>(buffers);
+        this.out = group != null ? DatagramChannel.open(StandardProtocolFamily.INET) : null;
+    }
+
+    /**
+     * Metodo che accoda un risultato da inviare, senza attendere. Se la coda è piena il risultato viene scartato.
+     * @param record Il risultato condiviso
+     */
+    public void submit(ShareRecord record) {
+        if (!pending.offer(record)) {
+            ServerMetrics.multicastDropped(1);
+        }
+    }
+
+    /**
+     * Ciclo del thread di invio: raggruppa le notifiche accodate e le invia al gruppo multicast e ai client iscritti.
+     * Termina quando il thread viene interrotto o la relay chiusa.
+     */
+    public void sendLoop() {
+        ByteBuffer datagram = ByteBuffer.allocateDirect(maxDatagram);
+        List<ShareRecord> batch = new ArrayList<>();
+        try {
+            while (true) {
+                ShareRecord next = pending.take();
+                int size = ShareRecord.DATAGRAM_HEADER.length;
+                long deadline = System.nanoTime() + windowNanos;
+                while (next != null) {
+                    if (!batch.isEmpty() && size + next.getBytes().length > maxDatagram) { // la notifica non entra nel datagram corrente
+                        send(datagram, batch);
+                        size = ShareRecord.DATAGRAM_HEADER.length;
+                        deadline = System.nanoTime() + windowNanos;
+                    }
+                    batch.add(next);
+                    size += next.getBytes().length;
+
+                    long wait = deadline - System.nanoTime();
+                    next = wait > 0 ? pending.poll(wait, TimeUnit.NANOSECONDS) : pending.poll();
+                }
+                send(datagram, batch);
+            }
+        } catch (ClosedChannelException | InterruptedException ex) {
+            // relay chiusa o thread interrotto
+        }
+    }
+
+    // Registra il gruppo di notifiche nel log del turno, lo invia in un datagram multicast e ai client iscritti, poi svuota il gruppo
+    private void send(ByteBuffer datagram, List<ShareRecord> batch) throws ClosedChannelException {
+        WordleServerMain.getCurrentRound().getShareLog().append(batch); // questo è l'unico thread che aggiunge risultati al log
+        NotificationHub.publish(batch);
+        if (out != null) {
+            datagram.clear();
+            datagram.put(ShareRecord.DATAGRAM_HEADER);
+            for (ShareRecord record : batch) {
+                datagram.put(record.getBytes());
+            }
+            datagram.flip();
+            try {
+                out.send(datagram, group);
+                ServerMetrics.multicastRelayed(batch.size());
+                if (ServerLog.enabled(ServerLog.DEBUG)) {
+                    ServerLog.log(ServerLog.DEBUG, "Mandate dal server " + batch.size() + " notifiche al gruppo multicast in un datagram da " + datagram.limit() + " byte.");
+                }
+            } catch (ClosedChannelException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                ServerMetrics.multicastDropped(batch.size());
+                System.err.println("Errore nell'invio di una notifica al gruppo multicast: " + ex.getMessage());
+            }
+        }
+        batch.clear();
+    }
+
+    /**
+     * Metodo che chiude la DatagramChannel del gruppo multicast (il thread di invio termina quando viene interrotto)
+     */
+    public void close() {
+        try {
+            if (out != null) {
+                out.close();
+            }
+        } catch (IOException ex) { }
+    }
+}
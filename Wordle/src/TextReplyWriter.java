@@ -0,0 +1,100 @@
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Codifica delle risposte nel protocollo testuale: una riga per risposta, nel formato letto da WordleClientMain.
+ */
+public class TextReplyWriter extends ReplyWriter {
+
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8); // come PrintWriter.println
+    private static final byte[][] STATUS_LINES = new byte[STATUS_NAMES.length][];
+
+    static {
+        for (int i = 0; i < STATUS_NAMES.length; i++) {
+            STATUS_LINES[i] = STATUS_NAMES[i].getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Override
+    public void status(int code) {
+        put(STATUS_LINES[code]);
+        put(LINE_SEPARATOR);
+    }
+
+    @Override
+    public void win(int attempts) {
+        put("WIN: Hai indovinato la secret word in ");
+        putDecimal(attempts);
+        put(" tentativi!");
+        put(LINE_SEPARATOR);
+    }
+
+    @Override
+    public void clue(byte[] clue, int letters, int remaining) {
+        put("CLUE: ");
+        putClue(clue, letters);
+        put(", hai a disposizione ");
+        putDecimal(remaining);
+        put(" tentativi.");
+        put(LINE_SEPARATOR);
+    }
+
+    @Override
+    public void lose(byte[] clue, int letters, String secretWord) {
+        put("LOSE: ");
+        putClue(clue, letters);
+        put(", la secret word era ");
+        put(secretWord);
+        put(". Grazie per aver giocato!");
+        put(LINE_SEPARATOR);
+    }
+
+    @Override
+    public void statistics(User user) {
+        put(user.getStats().textReply()); // risposta già codificata, riusata finchè le statistiche non cambiano
+        put(LINE_SEPARATOR);
+    }
+
+    @Override
+    public void unknownCommand() {
+        // nel protocollo testuale un comando non riconosciuto non riceve risposta
+    }
+
+    @Override
+    public void notification(ShareRecord record) {
+        put(NOTIFICATION_PREFIX);
+        put(record.getText()); // forma testuale calcolata una sola volta per tutti i client
+        put(LINE_SEPARATOR);
+    }
+
+    @Override
+    public void sharing(long cursor, List<ShareRecord> records) {
+        // "SHARING:<numero di sequenza>:<n>" seguita da una riga per risultato
+        put(SHARING_PREFIX);
+        put(Long.toString(cursor));
+        put(':');
+        putDecimal(records.size());
+        put(LINE_SEPARATOR);
+        for (ShareRecord record : records) {
+            put(record.getText());
+            put(LINE_SEPARATOR);
+        }
+    }
+
+    // Scrive gli indizi nella forma "[X, ?, +, ...]" (come Arrays.toString su un array di char)
+    private void putClue(byte[] clue, int letters) {
+        put('[');
+        for (int i = 0; i < letters; i++) {
+            if (i > 0) {
+                put(',');
+                put(' ');
+            }
+            put(clue[i]);
+        }
+        put(']');
+    }
+}
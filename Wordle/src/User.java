@@ -1,4 +1,4 @@
-import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /** 
  * @author Leonardo Arditti 24/4/2023
@@ -6,49 +6,46 @@ import java.util.ArrayList;
 
 /**
  * Classe che rappresenta un utente del gioco WORDLE.
+ * Lato server un utente è condiviso tra le sessioni dei client, il thread che scrive gli snapshot e il journal:
+ * le modifiche alle statistiche e al turno giocato avvengono tenendo il lock dell'utente (un lock per utente, per cui
+ * giocatori diversi non si bloccano a vicenda), mentre lo stato di autenticazione cambia con una compareAndSet.
+ * Le statistiche sono un oggetto immutabile (UserStats) sostituito a ogni vittoria o sconfitta, per cui possono essere lette senza lock.
  */
 public class User {
+    public static final int MAX_ATTEMPTS = 12; // numero massimo di tentativi per partita, dimensione della guess distribution
+    public static final int MAX_FIELD_BYTES = 255; // lunghezza massima in UTF-8 di username e password (un argomento del protocollo binario)
+
     private String username;
     private String password;
-    private int total_played_games;
-    private int total_games_won;
-    private int current_winstreak;
-    private int longest_winstreak;
-    private ArrayList<Integer> guess_distribution;
-    private boolean has_played;
-    private boolean is_logged;
+    private volatile UserStats stats = UserStats.EMPTY; // statistiche correnti, sostituite (e mai modificate) a ogni partita conclusa
+    private long last_played_epoch; // epoch dell'ultimo turno a cui l'utente ha partecipato (0 = nessuno)
+    private final AtomicBoolean is_logged = new AtomicBoolean(false);
+    private long journal_seq; // numero di sequenza dell'ultima modifica all'utente registrata nel journal (vedi UserJournal)
+    private boolean dirty; // true se l'utente è stato modificato dopo l'ultimo snapshot che lo contiene
+    private volatile ShareRecord last_game; // risultato dell'ultima partita conclusa, che l'utente può condividere (non salvato su file)
+    private long last_shared_epoch; // epoch dell'ultimo turno di cui l'utente ha condiviso il risultato
     
     public User(String username, String password) {
         this.username = username;
         this.password = password;
-        this.total_played_games = 0;
-        this.total_games_won = 0;
-        this.current_winstreak = 0;
-        this.longest_winstreak = 0;
-        this.guess_distribution = new ArrayList<>();
-        this.has_played = false;
+        this.last_played_epoch = 0;
     }
 
     // Costruttore completo
-    public User(String username, String password, int total_played_games, int total_games_won, int current_winstreak, int longest_winstreak, boolean has_played, ArrayList<Integer> guess_distribution) {
+    public User(String username, String password, int total_played_games, int total_games_won, int current_winstreak, int longest_winstreak, long last_played_epoch, int[] guess_distribution) {
         this.username = username;
         this.password = password;
-        this.total_played_games = total_played_games;
-        this.total_games_won = total_games_won;
-        this.current_winstreak = current_winstreak;
-        this.longest_winstreak = longest_winstreak;
-        this.guess_distribution = guess_distribution;
-        this.has_played = has_played;
+        this.stats = new UserStats(total_played_games, total_games_won, current_winstreak, longest_winstreak, guess_distribution, 0);
+        this.last_played_epoch = last_played_epoch;
     }
     
     // Costruttore usato quando non tutti i dati dell'utente sono disponibili (e.g: alla inizializzazione del programma client)
     public User() {
-        this.is_logged = false;
     }
     
     // Metodi getter
     public boolean isLoggedIn() {
-        return this.is_logged;
+        return this.is_logged.get();
     } 
     
     public String getUsername() {
@@ -59,86 +56,109 @@ public class User {
         return this.password;
     }
 
-    public int getTotal_played_games() {
-        return total_played_games;
+    // Restituisce le statistiche correnti con un'unica lettura volatile, senza acquisire il lock dell'utente
+    public UserStats getStats() {
+        return stats;
+    }
+
+    public synchronized long getLast_played_epoch() {
+        return last_played_epoch;
+    }
+
+    public long getJournal_seq() {
+        return journal_seq;
+    }
+
+    public void setJournal_seq(long journal_seq) {
+        this.journal_seq = journal_seq;
     }
 
-    public int getTotal_games_won() {
-        return total_games_won;
+    /**
+     * Metodo che segna l'utente come modificato dall'ultimo snapshot (da invocare tenendo il lock dell'utente)
+     * @return True se l'utente non era già segnato come modificato
+     */
+    public boolean setDirty() {
+        boolean was_clean = !dirty;
+        dirty = true;
+        return was_clean;
     }
 
-    public int getCurrent_winstreak() {
-        return current_winstreak;
+    public void setClean() {
+        dirty = false;
     }
 
-    public int getLongest_winstreak() {
-        return longest_winstreak;
+    public ShareRecord getLast_game() {
+        return last_game;
     }
 
-    public ArrayList<Integer> getGuess_distribution() {
-        return guess_distribution;
+    public void setLast_game(ShareRecord last_game) {
+        this.last_game = last_game;
     }
 
-    public boolean Has_played() {
-        return has_played;
+    public synchronized boolean Has_played(long epoch) {
+        return last_played_epoch >= epoch;
     }
     
     public String statistics() {
-        // Vanno mostrate le seguenti statistiche:
-        // - numero partite giocate
-        // - numero partite vinte
-        // - percentuale di partite vinte
-        // - lunghezza dell’ultima sequenza continua (streak) di vincite
-        // - lunghezza della massima sequenza continua (streak) di vincite
-        // - guess distribution: la distribuzione di tentativi impiegati per arrivare alla soluzione del gioco, in ogni partita vinta dal giocatore
-        
-        double win_percentage = ((double) total_games_won / total_played_games) * 100;
-        return "Partite giocate: " + total_played_games + "-" +
-               "Partite vinte: " + total_games_won + "-" + 
-               "Percentuale partite vinte: " + win_percentage + "%-" +
-               "Streak di vincite corrente: " + current_winstreak + "-" +
-               "Streak di vincite più lunga: " + longest_winstreak + "-" +
-               "Guess distribution: " + guess_distribution;               
+        return stats.toString();
     }
     
     // Metodi setter
     
-    public void setHas_not_played() {
-        has_played = false;
-    }
-
-    public void setHas_played() {
-        has_played = true;
+    /**
+     * Metodo che registra la partecipazione dell'utente a un turno, se non vi ha già partecipato
+     * @param epoch L'epoch del turno
+     * @return      True se l'utente non aveva ancora giocato il turno, false altrimenti
+     */
+    public synchronized boolean markPlayed(long epoch) {
+        if (last_played_epoch >= epoch) {
+            return false;
+        }
+        last_played_epoch = epoch;
+        return true;
     }
     
+    /**
+     * Metodo che registra la condivisione del risultato della partita di un turno, se non già condiviso
+     * @param epoch L'epoch del turno
+     * @return      True se il risultato del turno non era ancora stato condiviso, false altrimenti
+     */
+    public synchronized boolean markShared(long epoch) {
+        if (last_shared_epoch >= epoch) {
+            return false;
+        }
+        last_shared_epoch = epoch;
+        return true;
+    }
+
     public void setLoggedIn() {
-        this.is_logged = true;
+        this.is_logged.set(true);
     }
     
     public void setNotLoggedIn() {
-        this.is_logged = false;
+        this.is_logged.set(false);
+    }
+
+    /**
+     * Metodo che autentica l'utente solo se non è già autenticato, in modo atomico: tra due login concorrenti con lo stesso
+     * username solo uno ha successo
+     * @return True se l'utente non era autenticato (e ora lo è), false altrimenti
+     */
+    public boolean tryLogin() {
+        return this.is_logged.compareAndSet(false, true);
     }
     
-    public void addWin(int numTries) {
-        current_winstreak++;
-        
-        if (current_winstreak > longest_winstreak)
-            longest_winstreak = current_winstreak;
-        
-        total_played_games++;
-        total_games_won++;
-        
-        guess_distribution.add(numTries);
+    // Le statistiche vengono sostituite tenendo il lock dell'utente, per cui due partite concluse insieme non perdono un aggiornamento
+    public synchronized void addWin(int numTries) {
+        stats = stats.win(numTries);
     }
     
-    public void addLose() {
-        current_winstreak = 0;
-        
-        total_played_games++;
+    public synchronized void addLose() {
+        stats = stats.lose();
     }
     
     @Override
     public String toString() {
-        return "User{" + "username=" + username + ", password=" + password + ", total_played_games=" + total_played_games + ", total_games_won=" + total_games_won + ", current_winstreak=" + current_winstreak + ", longest_winstreak=" + longest_winstreak + ", guess_distribution=" + guess_distribution + ", has_played=" + has_played + ", is_logged=" + is_logged + '}';
+        return "User{" + "username=" + username + ", password=" + password + ", stats=" + stats + ", last_played_epoch=" + last_played_epoch + ", is_logged=" + is_logged.get() + '}';
     }
 }
\ No newline at end of file
@@ -0,0 +1,461 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Classe che implementa il journal (write-ahead log) delle modifiche agli utenti: registrazione, vittoria, sconfitta e partecipazione a un turno.
+ * Ogni modifica riceve un numero di sequenza crescente e viene accodata; un thread dedicato scrive in un'unica append
+ * (seguita da un'unica force su disco) tutte le modifiche accodate nel frattempo (group commit).
+ * Chi ha accodato una modifica attende che il gruppo che la contiene sia su disco prima di comunicarne l'esito al client,
+ * per cui una modifica confermata non va persa in caso di crash: il thread di una connessione attende con await(), mentre un
+ * reactor (che serve molte connessioni) registra con Commit.whenDone() la ripresa della sola connessione interessata.
+ * L'attesa avviene dopo aver rilasciato il lock dell'utente, per cui durante una force gli altri thread continuano ad accodare
+ * modifiche che finiscono nel gruppo successivo.
+ * L'accodamento non acquisisce lock (numero di sequenza da un AtomicLong, coda lock-free), per cui i giocatori non si
+ * serializzano sul journal nemmeno durante una rotazione; i record di un segmento possono quindi non essere in ordine
+ * di sequenza, e vengono ordinati in lettura (vedi readAll).
+ * All'avvio il server carica l'ultimo snapshot (USER_DB) e riapplica le modifiche del journal con numero di sequenza maggiore
+ * di quello già riflesso nello snapshot per ciascun utente (campo journal_seq).
+ * Formato di un record: [crc32 u32][lunghezza u16][tipo u8][sequenza u64][username UTF] seguito da [password UTF] (REGISTER),
+ * [tentativi u8] (WIN) o [epoch u64] (PLAYED); un record incompleto o corrotto in coda al file (crash durante la scrittura) viene ignorato.
+ * La lettura si ferma al primo record corrotto, per cui dopo una scrittura fallita (o all'apertura di un segmento che termina
+ * con un record incompleto) il segmento viene troncato all'ultimo record integro prima di scrivere altri record: le modifiche
+ * del gruppo fallito non vengono confermate ai client, e restano solo in memoria finchè il prossimo snapshot non le salva.
+ */
+public class UserJournal implements Runnable {
+
+    // Tipi di record
+    public static final int REGISTER = 1;
+    public static final int WIN = 2;
+    public static final int LOSE = 3;
+    public static final int PLAYED = 4;
+
+    /**
+     * Modifica accodata al journal, restituita da append() per attenderne la scrittura su disco: con await() (bloccante)
+     * o registrando con whenDone() un'azione eseguita a scrittura terminata (vedi NioReactor)
+     */
+    public static class Commit {
+        private final long seq;
+        private final byte[] record;
+        private volatile boolean done = false; // true quando la scrittura del record è terminata
+        private volatile boolean durable = false; // true se il record è su disco, false se la scrittura è fallita
+        private volatile Thread waiter; // thread in attesa in await(), da risvegliare
+        private Runnable action; // azione registrata con whenDone(), protetta dal lock del Commit
+
+        private Commit(long seq, byte[] record) {
+            this.seq = seq;
+            this.record = record;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        // True se il record è su disco, significativo solo a scrittura terminata
+        public boolean isDurable() {
+            return durable;
+        }
+
+        /**
+         * Metodo che registra l'azione da eseguire quando la scrittura del record è terminata, senza attendere.
+         * L'azione viene eseguita dal thread del journal, o subito dal chiamante se la scrittura è già terminata,
+         * per cui non deve bloccare. Si può registrare una sola azione per modifica.
+         * @param action L'azione da eseguire
+         */
+        public void whenDone(Runnable action) {
+            synchronized (this) {
+                if (!done) {
+                    this.action = action;
+                    return;
+                }
+            }
+            action.run();
+        }
+
+        // Segna la scrittura come terminata (con successo o meno), risveglia il thread in attesa ed esegue l'azione registrata
+        private void complete(boolean written) {
+            Runnable registered;
+            synchronized (this) {
+                durable = written;
+                done = true;
+                registered = action;
+                action = null;
+            }
+            Thread t = waiter;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+            if (registered != null) {
+                registered.run();
+            }
+        }
+    }
+
+    /**
+     * Modifica letta dal journal durante il ripristino
+     */
+    public static class Entry {
+        public int type;
+        public long seq;
+        public String username;
+        public String password; // solo REGISTER
+        public long value; // tentativi (WIN) o epoch (PLAYED)
+    }
+
+    private final String path; // segmento corrente del journal
+    private final String rotatedPath; // segmento precedente, in attesa che uno snapshot lo renda superfluo
+    private final long compactSize; // dimensione del segmento corrente oltre la quale viene richiesta una compattazione
+    private final Runnable compaction; // task di compattazione (scrittura di un nuovo snapshot), eseguito su un thread separato
+
+    private final Queue<Commit> queue = new ConcurrentLinkedQueue<>(); // record in attesa di essere scritti
+    private final Object writeLock = new Object(); // serializza l'uso del file tra il thread del journal e rotate()
+    private final AtomicLong nextSeq;
+    private FileChannel channel;
+    private long end; // fine dell'ultimo record integro del segmento corrente, dove va scritto il gruppo successivo
+    private boolean torn = false; // true se dopo end possono esserci byte di un gruppo la cui scrittura è fallita
+    private volatile boolean running = true;
+    private volatile boolean idle = false; // true mentre il thread del journal attende nuovi record
+    private volatile boolean compacting = false;
+    private final Thread writer;
+
+    /**
+     * @param path        Il percorso del segmento corrente del journal (il precedente ha suffisso ".1")
+     * @param nextSeq     Il primo numero di sequenza da assegnare (maggiore di tutti quelli già presenti nello snapshot e nel journal)
+     * @param compactSize La dimensione in byte del segmento corrente oltre la quale viene eseguita la compattazione
+     * @param compaction  Il task che scrive un nuovo snapshot (invocando rotate() e deleteRotated())
+     * @throws IOException se non è possibile aprire il file del journal
+     */
+    public UserJournal(String path, long nextSeq, long compactSize, Runnable compaction) throws IOException {
+        this.path = path;
+        this.rotatedPath = path + ".1";
+        this.nextSeq = new AtomicLong(nextSeq);
+        this.compactSize = compactSize;
+        this.compaction = compaction;
+        this.channel = open(path);
+        this.end = read(path, new ArrayList<>()); // un record incompleto in coda (crash durante la scrittura) va eliminato prima di scriverne altri
+        this.torn = channel.size() > end;
+        this.writer = new Thread(this, "user-journal");
+        this.writer.start();
+    }
+
+    private static FileChannel open(String path) throws IOException {
+        FileChannel channel = new RandomAccessFile(path, "rw").getChannel();
+        channel.position(channel.size());
+        return channel;
+    }
+
+    /**
+     * Metodo che accoda una modifica al journal. Va invocato tenendo il lock dell'utente modificato, dopo aver applicato
+     * la modifica in memoria, in modo che il numero di sequenza rifletta l'ordine delle modifiche sullo stesso utente.
+     * Un record che non rientra nel campo lunghezza (u16) viene rifiutato senza assegnargli un numero di sequenza: troncarne
+     * la lunghezza renderebbe illeggibili al ripristino il record e tutti quelli successivi del segmento.
+     * @param type     Il tipo di modifica
+     * @param username L'username dell'utente modificato
+     * @param password La password (solo per REGISTER, altrimenti null)
+     * @param value    I tentativi (WIN), l'epoch del turno (PLAYED) o 0
+     * @return         La modifica accodata, con il numero di sequenza assegnato (da attendere prima di rispondere al client)
+     * @throws IllegalArgumentException se username e password non entrano in un record (vedi User.MAX_FIELD_BYTES)
+     */
+    public Commit append(int type, String username, String password, long value) {
+        byte[] record;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0); // crc, lunghezza e sequenza, scritti dopo
+            out.writeShort(0);
+            out.writeByte(type);
+            out.writeLong(0);
+            out.writeUTF(username);
+            if (type == REGISTER) {
+                out.writeUTF(password);
+            } else if (type == WIN) {
+                out.writeByte((int) value);
+            } else if (type == PLAYED) {
+                out.writeLong(value);
+            }
+            record = bytes.toByteArray();
+        } catch (UTFDataFormatException ex) { // campo di oltre 65535 byte
+            throw new IllegalArgumentException("campo troppo lungo per il journal", ex);
+        } catch (IOException ex) { // non si verifica scrivendo su un ByteArrayOutputStream
+            throw new IllegalStateException(ex);
+        }
+        int length = record.length - 6;
+        if (length > 0xFFFF) {
+            throw new IllegalArgumentException("record di " + length + " byte troppo lungo per il journal");
+        }
+        long seq = nextSeq.getAndIncrement();
+        ByteBuffer.wrap(record, 7, 8).putLong(seq);
+        CRC32 crc = new CRC32();
+        crc.update(record, 6, length);
+        ByteBuffer.wrap(record).putInt((int) crc.getValue()).putShort((short) length);
+        Commit commit = new Commit(seq, record);
+        queue.add(commit);
+        if (idle) {
+            LockSupport.unpark(writer);
+        }
+        return commit;
+    }
+
+    /**
+     * Metodo che attende che una modifica accodata sia stata scritta su disco. Va invocato senza tenere il lock dell'utente.
+     * Se la scrittura fallisce (errore già segnalato dal thread del journal) o il journal viene chiuso l'attesa termina comunque:
+     * la modifica resta in memoria e verrà salvata dal prossimo snapshot, ma non va confermata al client.
+     * @param commit La modifica restituita da append()
+     * @return       True se la modifica è su disco, false se la scrittura è fallita
+     */
+    public boolean await(Commit commit) {
+        if (commit.done) {
+            return commit.durable;
+        }
+        commit.waiter = Thread.currentThread();
+        boolean interrupted = false;
+        while (!commit.done && writer.isAlive()) {
+            LockSupport.parkNanos(commit, TimeUnit.MILLISECONDS.toNanos(100));
+            if (Thread.interrupted()) { // la modifica è già accodata: attendo comunque la scrittura
+                interrupted = true;
+            }
+        }
+        commit.waiter = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return commit.durable;
+    }
+
+    /**
+     * Ciclo del thread del journal: scrive in blocco i record accodati e li rende persistenti con un'unica force.
+     */
+    @Override
+    public void run() {
+        List<Commit> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            Commit next;
+            while ((next = queue.poll()) != null) { // tutti i record arrivati nel frattempo vengono scritti con la stessa operazione
+                batch.add(next);
+            }
+            if (batch.isEmpty()) {
+                idle = true; // chi accoda un record da qui in poi risveglia il thread
+                if (running && queue.isEmpty()) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                idle = false;
+                continue;
+            }
+            boolean written;
+            long size;
+            synchronized (writeLock) {
+                written = write(batch);
+                size = end;
+            }
+            complete(batch, written);
+
+            if (written && size >= compactSize && !compacting) { // il segmento è cresciuto troppo: scrivo uno snapshot in background
+                compacting = true;
+                Thread compactor = new Thread(() -> {
+                    try {
+                        compaction.run();
+                    } finally {
+                        compacting = false;
+                    }
+                }, "user-journal-compaction");
+                compactor.start();
+            }
+        }
+    }
+
+    // Comunica l'esito della scrittura ai thread in attesa dei record e svuota la lista
+    private static void complete(List<Commit> batch, boolean written) {
+        for (Commit commit : batch) {
+            commit.complete(written);
+        }
+        batch.clear();
+    }
+
+    /**
+     * Metodo che scrive i record in un'unica append alla fine dell'ultimo record integro e attende che siano su disco.
+     * Se la scrittura fallisce i byte scritti in parte vengono eliminati prima della scrittura successiva: se non è possibile
+     * troncare il segmento falliscono anche le scritture successive, invece di aggiungere record che al ripristino non verrebbero letti.
+     * @return True se i record sono su disco, false in caso di errore (già segnalato)
+     */
+    private boolean write(List<Commit> records) {
+        try {
+            if (torn) {
+                channel.truncate(end);
+                channel.position(end);
+                channel.force(false);
+                torn = false;
+            }
+            int total = 0;
+            for (Commit commit : records) {
+                total += commit.record.length;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(total);
+            for (Commit commit : records) {
+                buf.put(commit.record);
+            }
+            buf.flip();
+            torn = true; // finchè la force non termina i record potrebbero essere su disco solo in parte
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(false);
+            torn = false;
+            end = channel.position();
+            return true;
+        } catch (IOException ex) {
+            System.err.println("Errore nella scrittura del journal degli utenti " + path);
+            ex.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Metodo che chiude il segmento corrente del journal e ne apre uno nuovo. Tutte le modifiche scritte prima della rotazione
+     * sono già applicate in memoria (ogni modifica viene accodata dopo essere stata applicata): uno snapshot scritto dopo la
+     * rotazione le contiene tutte, per cui terminato lo snapshot il segmento precedente può essere eliminato con deleteRotated().
+     * Le modifiche ancora in coda finiscono nel nuovo segmento. Viene sospeso solo il thread del journal, mentre gli altri
+     * thread continuano ad accodare modifiche.
+     * Se il segmento precedente esiste ancora (lo snapshot precedente non è andato a buon fine) la rotazione non viene eseguita:
+     * il segmento corrente continua a ricevere le modifiche e il prossimo snapshot riuscito rende superfluo il segmento precedente.
+     * @throws IOException se non è possibile chiudere, rinominare o aprire i file del journal
+     */
+    public void rotate() throws IOException {
+        synchronized (writeLock) {
+            File rotated = new File(rotatedPath);
+            if (rotated.exists()) {
+                return;
+            }
+            channel.close();
+            if (!new File(path).renameTo(rotated)) {
+                channel = open(path);
+                throw new IOException("impossibile ruotare il journal " + path);
+            }
+            channel = open(path); // eventuali byte di una scrittura fallita restano in coda al segmento precedente, dopo tutti i suoi record integri
+            end = 0;
+            torn = false;
+        }
+    }
+
+    /**
+     * Metodo che elimina il segmento precedente del journal, da invocare dopo aver scritto uno snapshot successivo a rotate()
+     */
+    public void deleteRotated() {
+        new File(rotatedPath).delete();
+    }
+
+    /**
+     * Metodo che termina il thread del journal dopo aver scritto tutti i record accodati
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        Commit late;
+        while ((late = queue.poll()) != null) { // accodata dopo la terminazione del thread: chi la attende non resta bloccato
+            late.complete(false);
+        }
+        synchronized (writeLock) {
+            try {
+                channel.close();
+            } catch (IOException ex) { }
+        }
+    }
+
+    /**
+     * Metodo che legge le modifiche di entrambi i segmenti del journal (se presenti), ordinate per numero di sequenza
+     * @param path Il percorso del segmento corrente del journal
+     * @return     Le modifiche lette
+     */
+    public static List<Entry> readAll(String path) {
+        List<Entry> entries = new ArrayList<>();
+        read(path + ".1", entries);
+        read(path, entries);
+        // un record accodato prima della rotazione può essere stato scritto nel segmento successivo
+        Collections.sort(entries, Comparator.comparingLong(e -> e.seq));
+        return entries;
+    }
+
+    // Legge i record di un segmento fino alla fine del file o al primo record incompleto/corrotto, restituendo la fine dell'ultimo record integro
+    private static long read(String path, List<Entry> entries) {
+        File file = new File(path);
+        long valid = 0;
+        if (!file.exists()) {
+            return valid;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int crc = in.readInt();
+                byte[] payload = new byte[in.readUnsignedShort()];
+                in.readFully(payload);
+                CRC32 check = new CRC32();
+                check.update(payload, 0, payload.length);
+                if ((int) check.getValue() != crc) {
+                    System.err.println("[DEBUG] Record corrotto nel journal " + path + ", ignoro i record successivi.");
+                    return valid;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                Entry entry = new Entry();
+                entry.type = record.readUnsignedByte();
+                entry.seq = record.readLong();
+                entry.username = record.readUTF();
+                if (entry.type == REGISTER) {
+                    entry.password = record.readUTF();
+                } else if (entry.type == WIN) {
+                    entry.value = record.readUnsignedByte();
+                } else if (entry.type == PLAYED) {
+                    entry.value = record.readLong();
+                }
+                entries.add(entry);
+                valid += 6 + payload.length;
+            }
+        } catch (EOFException ex) {
+            // fine del segmento (eventualmente con un record incompleto, scritto solo in parte prima di un crash)
+        } catch (IOException ex) {
+            System.err.println("Errore durante la lettura del journal degli utenti " + path);
+            ex.printStackTrace();
+            return file.length(); // fine dell'ultimo record integro sconosciuta: il segmento non va troncato
+        }
+        return valid;
+    }
+
+    /**
+     * Metodo che elimina entrambi i segmenti del journal, da invocare dopo aver scritto uno snapshot con tutte le modifiche
+     * @param path Il percorso del segmento corrente del journal
+     */
+    public static void deleteAll(String path) {
+        new File(path + ".1").delete();
+        new File(path).delete();
+    }
+}
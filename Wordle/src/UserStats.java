@@ -0,0 +1,155 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Classe immutabile che rappresenta le statistiche di un utente in un dato istante.
+ * Ogni vittoria o sconfitta produce una nuova istanza (con versione incrementata) che l'utente pubblica con un unico
+ * riferimento volatile: chi la legge vede sempre statistiche coerenti senza dover acquisire il lock dell'utente.
+ * Le risposte a SENDMESTATISTICS (testuale e binaria) vengono codificate alla prima richiesta e riusate finchè
+ * le statistiche non cambiano.
+ */
+public class UserStats {
+
+    public static final UserStats EMPTY = new UserStats(0, 0, 0, 0, new int[User.MAX_ATTEMPTS], 0);
+
+    private final int total_played_games;
+    private final int total_games_won;
+    private final int current_winstreak;
+    private final int longest_winstreak;
+    private final int[] guess_distribution; // guess_distribution[i] = numero di partite vinte con i + 1 tentativi, mai modificato
+    private final long version; // incrementata a ogni modifica delle statistiche
+
+    // Risposte codificate, calcolate alla prima richiesta (due thread possono calcolarle entrambi, ottenendo gli stessi byte)
+    private volatile byte[] textReply;
+    private volatile byte[] binaryReply;
+
+    /**
+     * @param guess_distribution La guess distribution, di lunghezza User.MAX_ATTEMPTS (viene copiata)
+     */
+    public UserStats(int total_played_games, int total_games_won, int current_winstreak, int longest_winstreak, int[] guess_distribution, long version) {
+        this.total_played_games = total_played_games;
+        this.total_games_won = total_games_won;
+        this.current_winstreak = current_winstreak;
+        this.longest_winstreak = longest_winstreak;
+        this.guess_distribution = Arrays.copyOf(guess_distribution, User.MAX_ATTEMPTS);
+        this.version = version;
+    }
+
+    /**
+     * Metodo che restituisce le statistiche dopo una vittoria
+     * @param numTries Il numero di tentativi impiegati per indovinare la secret word
+     * @return         Le nuove statistiche
+     */
+    public UserStats win(int numTries) {
+        int[] distribution = guess_distribution.clone();
+        if (numTries >= 1 && numTries <= User.MAX_ATTEMPTS) {
+            distribution[numTries - 1]++;
+        }
+        int winstreak = current_winstreak + 1;
+        return new UserStats(total_played_games + 1, total_games_won + 1, winstreak, Math.max(winstreak, longest_winstreak), distribution, version + 1);
+    }
+
+    /**
+     * Metodo che restituisce le statistiche dopo una sconfitta
+     * @return Le nuove statistiche
+     */
+    public UserStats lose() {
+        return new UserStats(total_played_games + 1, total_games_won, 0, longest_winstreak, guess_distribution, version + 1);
+    }
+
+    // Metodi getter
+
+    public int getTotal_played_games() {
+        return total_played_games;
+    }
+
+    public int getTotal_games_won() {
+        return total_games_won;
+    }
+
+    public int getCurrent_winstreak() {
+        return current_winstreak;
+    }
+
+    public int getLongest_winstreak() {
+        return longest_winstreak;
+    }
+
+    // Restituisce l'array interno, che non va modificato
+    public int[] getGuess_distribution() {
+        return guess_distribution;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Metodo che restituisce la risposta a SENDMESTATISTICS nel protocollo testuale (senza fine riga)
+     * @return I byte UTF-8 della risposta
+     */
+    public byte[] textReply() {
+        byte[] reply = textReply;
+        if (reply == null) {
+            reply = toString().getBytes(StandardCharsets.UTF_8);
+            textReply = reply;
+        }
+        return reply;
+    }
+
+    /**
+     * Metodo che restituisce la risposta a SENDMESTATISTICS nel protocollo binario: il frame completo
+     * [lunghezza u16][STATISTICS u8][giocate u32][vinte u32][streak corrente u32][streak massima u32][n u8][n x u32]
+     * @return I byte del frame
+     */
+    public byte[] binaryReply() {
+        byte[] reply = binaryReply;
+        if (reply == null) {
+            int length = 1 + 4 * 4 + 1 + 4 * guess_distribution.length;
+            ByteBuffer out = ByteBuffer.allocate(2 + length);
+            out.putShort((short) length);
+            out.put((byte) BinaryProtocol.STATISTICS);
+            out.putInt(total_played_games);
+            out.putInt(total_games_won);
+            out.putInt(current_winstreak);
+            out.putInt(longest_winstreak);
+            out.put((byte) guess_distribution.length);
+            for (int count : guess_distribution) {
+                out.putInt(count);
+            }
+            reply = out.array();
+            binaryReply = reply;
+        }
+        return reply;
+    }
+
+    @Override
+    public String toString() {
+        return format(total_played_games, total_games_won, current_winstreak, longest_winstreak, Arrays.toString(guess_distribution));
+    }
+
+    // Formato delle statistiche inviate al client, condiviso con la decodifica delle risposte del protocollo binario
+    public static String format(int total_played_games, int total_games_won, int current_winstreak, int longest_winstreak, String guess_distribution) {
+        // Vanno mostrate le seguenti statistiche:
+        // - numero partite giocate
+        // - numero partite vinte
+        // - percentuale di partite vinte
+        // - lunghezza dell’ultima sequenza continua (streak) di vincite
+        // - lunghezza della massima sequenza continua (streak) di vincite
+        // - guess distribution: la distribuzione di tentativi impiegati per arrivare alla soluzione del gioco, in ogni partita vinta dal giocatore
+
+        // un utente che non ha mai giocato ha una percentuale di vittorie pari a 0 (e non NaN)
+        double win_percentage = total_played_games == 0 ? 0.0 : ((double) total_games_won / total_played_games) * 100;
+        return "Partite giocate: " + total_played_games + "-" +
+               "Partite vinte: " + total_games_won + "-" +
+               "Percentuale partite vinte: " + win_percentage + "%-" +
+               "Streak di vincite corrente: " + current_winstreak + "-" +
+               "Streak di vincite più lunga: " + longest_winstreak + "-" +
+               "Guess distribution: " + guess_distribution;
+    }
+}
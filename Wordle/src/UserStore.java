@@ -0,0 +1,336 @@
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Classe che legge e scrive i file degli utenti, in formato JSON (un array di oggetti) o in formato binario.
+ * Il formato binario (big-endian) è composto da:
+ * - header: [MAGIC 4 byte][versione u16][numero utenti u32]
+ * - un record per utente: [username u32 + UTF-8][password u32 + UTF-8][partite giocate u32][partite vinte u32]
+ *   [streak corrente u32][streak massima u32][last_played_epoch u64][journal_seq u64][istogramma MAX_ATTEMPTS x u32]
+ * In entrambi i formati la guess distribution è memorizzata come istogramma (numero di vittorie per ogni numero di tentativi),
+ * per cui la dimensione di un record non dipende dal numero di partite giocate; nel formato JSON il campo è "guess_histogram",
+ * mentre il campo "guess_distribution" dei file precedenti (tentativi di ogni partita vinta) viene convertito in lettura.
+ * Le lunghezze di username e password sono u32 perchè il file deve contenere ogni utente, anche quelli registrati prima del
+ * limite User.MAX_FIELD_BYTES (e.g: migrati da un file JSON); i file della versione 1 (lunghezze u16) vengono ancora letti.
+ * In lettura il formato viene riconosciuto dai primi byte del file, per cui si può passare da un formato all'altro
+ * semplicemente cambiando USER_STORE_FORMAT: il file viene riscritto nel nuovo formato al primo snapshot completo.
+ * Strumento di conversione: java UserStore json|binary <file di input> <file di output>
+ */
+public class UserStore {
+
+    public static final byte[] MAGIC = {'W', 'U', 'S', 'R'};
+    public static final int VERSION = 2;
+    public static final int MAX_ATTEMPTS = User.MAX_ATTEMPTS; // dimensione dell'istogramma
+
+    /**
+     * Metodo che legge un file di utenti, riconoscendone il formato
+     * @param file     Il file da leggere
+     * @param consumer Invocato per ogni utente letto
+     * @return         Il numero di utenti letti
+     * @throws IOException se il file non esiste o è malformato
+     */
+    public static int read(File file, Consumer<User> consumer) throws IOException {
+        if (isBinary(file)) {
+            return readBinary(file, consumer);
+        }
+        return readJson(file, consumer);
+    }
+
+    // True se il file inizia con MAGIC
+    private static boolean isBinary(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] head = new byte[MAGIC.length];
+            int n = 0, r;
+            while (n < head.length && (r = in.read(head, n, head.length - n)) > 0) {
+                n += r;
+            }
+            if (n < head.length) {
+                return false;
+            }
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (head[i] != MAGIC[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Metodo che legge un file di utenti in formato JSON.
+     * Si usa la GSON Streaming API perchè l'oggetto da caricare potrebbe essere grande e in questo modo si sfrutta
+     * il caricamento parziale dell'oggetto.
+     */
+    private static int readJson(File file, Consumer<User> consumer) throws IOException {
+        int total_users = 0;
+        try (JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)))) {
+            reader.beginArray(); // [
+            while (reader.hasNext()) { // l'array ha altri elementi?
+
+                // Variabili che vengono usate nella creazione di un oggetto di tipo User
+                String username = "", password = "";
+                int total_games_played = 0, total_games_won = 0, current_winstreak = 0, longest_winstreak = 0;
+                long last_played_epoch = 0, journal_seq = 0;
+                int[] guess_distribution = new int[MAX_ATTEMPTS];
+
+                reader.beginObject(); // {
+                while (reader.hasNext()) { // leggo i vari campi dell'oggetto JSON
+                    String key = reader.nextName();
+                    if ("username".equals(key)) {
+                        username = reader.nextString();
+                    } else if ("password".equals(key)) {
+                        password = reader.nextString();
+                    } else if ("total_played_games".equals(key)) {
+                        total_games_played = reader.nextInt();
+                    } else if ("total_games_won".equals(key)) {
+                        total_games_won = reader.nextInt();
+                    } else if ("current_winstreak".equals(key)) {
+                        current_winstreak = reader.nextInt();
+                    } else if ("longest_winstreak".equals(key)) {
+                        longest_winstreak = reader.nextInt();
+                    } else if ("last_played_epoch".equals(key)) {
+                        last_played_epoch = reader.nextLong();
+                    } else if ("journal_seq".equals(key)) {
+                        journal_seq = reader.nextLong();
+                    } else if ("has_played".equals(key)) { // campo dei file salvati prima dell'introduzione degli epoch, sempre false
+                        reader.nextBoolean();
+                    } else if ("guess_histogram".equals(key)) { // numero di vittorie per ogni numero di tentativi
+                        reader.beginArray(); // [
+                        for (int i = 0; reader.hasNext(); i++) {
+                            int count = reader.nextInt();
+                            if (i < MAX_ATTEMPTS) {
+                                guess_distribution[i] = count;
+                            }
+                        }
+                        reader.endArray(); // ]
+                    } else if ("guess_distribution".equals(key)) { // formato precedente: tentativi impiegati in ogni partita vinta
+                        reader.beginArray(); // [
+                        while (reader.hasNext()) {
+                            int guess_attempt = reader.nextInt();
+                            if (guess_attempt >= 1 && guess_attempt <= MAX_ATTEMPTS) {
+                                guess_distribution[guess_attempt - 1]++;
+                            }
+                        }
+                        reader.endArray(); // ]
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject(); // }
+                total_users++;
+
+                // Creo l'oggetto User corrispondente alle informazioni lette da file
+                User user = new User(username, password, total_games_played, total_games_won, current_winstreak, longest_winstreak, last_played_epoch, guess_distribution);
+                user.setJournal_seq(journal_seq);
+                consumer.accept(user);
+            }
+            reader.endArray(); // ]
+        }
+        return total_users;
+    }
+
+    /**
+     * Metodo che legge un file di utenti in formato binario
+     */
+    private static int readBinary(File file, Consumer<User> consumer) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            in.skipBytes(MAGIC.length);
+            int version = in.readUnsignedShort();
+            if (version != VERSION && version != 1) {
+                throw new IOException("versione " + version + " del file " + file + " non supportata");
+            }
+            int total_users = in.readInt();
+            for (int i = 0; i < total_users; i++) {
+                String username = readString(in, version);
+                String password = readString(in, version);
+                int total_games_played = in.readInt();
+                int total_games_won = in.readInt();
+                int current_winstreak = in.readInt();
+                int longest_winstreak = in.readInt();
+                long last_played_epoch = in.readLong();
+                long journal_seq = in.readLong();
+                int[] guess_distribution = new int[MAX_ATTEMPTS];
+                for (int attempts = 0; attempts < MAX_ATTEMPTS; attempts++) {
+                    guess_distribution[attempts] = in.readInt();
+                }
+
+                User user = new User(username, password, total_games_played, total_games_won, current_winstreak, longest_winstreak, last_played_epoch, guess_distribution);
+                user.setJournal_seq(journal_seq);
+                consumer.accept(user);
+            }
+            return total_users;
+        }
+    }
+
+    private static String readString(DataInputStream in, int version) throws IOException {
+        int length = version == 1 ? in.readUnsignedShort() : in.readInt();
+        if (length < 0) {
+            throw new IOException("lunghezza di un campo non valida: " + (length & 0xFFFFFFFFL));
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Metodo che scrive un file di utenti.
+     * Il file viene scritto su un file temporaneo, forzato su disco e poi rinominato atomicamente, in modo che un crash durante
+     * la scrittura non sostituisca mai un file valido con uno incompleto.
+     * Può essere eseguito mentre i client modificano gli utenti: ogni utente viene letto tenendo il suo lock e insieme al numero
+     * di sequenza dell'ultima modifica registrata nel journal (journal_seq), per cui al ripristino le modifiche successive non vanno perse
+     * e quelle già contenute nel file non vengono applicate due volte.
+     * Ogni utente viene segnato come salvato (User.setClean) mentre viene copiato, per cui una modifica successiva alla copia lo segna
+     * di nuovo; se il metodo lancia un'eccezione è il chiamante a dover segnare di nuovo come modificati gli utenti da scrivere.
+     * @param file    Il file da scrivere
+     * @param toWrite Gli utenti da scrivere (la collezione non deve cambiare durante la scrittura)
+     * @param binary  True per il formato binario, false per il formato JSON (compatto, senza indentazione)
+     * @return        Il numero di utenti scritti
+     * @throws IOException se si verifica un errore durante la scrittura
+     */
+    public static int write(File file, Collection<User> toWrite, boolean binary) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        int total_users;
+        try (FileOutputStream output = new FileOutputStream(tmp)) {
+            total_users = binary ? writeBinary(output, toWrite) : writeJson(output, toWrite);
+            output.getFD().sync();
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return total_users;
+    }
+
+    // Copia coerente dello stato di un utente, letta tenendo il suo lock
+    private static class Record {
+        String username, password;
+        int total_played_games, total_games_won, current_winstreak, longest_winstreak;
+        long last_played_epoch, journal_seq;
+        int[] guess_distribution;
+
+        Record(User user) {
+            synchronized (user) {
+                username = user.getUsername();
+                password = user.getPassword();
+                UserStats stats = user.getStats(); // immutabile, non serve copiarlo
+                total_played_games = stats.getTotal_played_games();
+                total_games_won = stats.getTotal_games_won();
+                current_winstreak = stats.getCurrent_winstreak();
+                longest_winstreak = stats.getLongest_winstreak();
+                guess_distribution = stats.getGuess_distribution();
+                last_played_epoch = user.getLast_played_epoch();
+                journal_seq = user.getJournal_seq();
+                user.setClean(); // lo stato copiato finisce nel file (se la scrittura fallisce il chiamante segna di nuovo l'utente)
+            }
+        }
+    }
+
+    private static int writeJson(FileOutputStream output, Collection<User> toWrite) throws IOException {
+        JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8)));
+        int total_users = 0;
+        writer.beginArray(); // [
+        for (User user : toWrite) {
+            Record r = new Record(user);
+            writer.beginObject(); // {
+            writer.name("username").value(r.username); // scrivo coppie key-value nel file JSON
+            writer.name("password").value(r.password);
+            writer.name("total_played_games").value(r.total_played_games);
+            writer.name("total_games_won").value(r.total_games_won);
+            writer.name("current_winstreak").value(r.current_winstreak);
+            writer.name("longest_winstreak").value(r.longest_winstreak);
+            writer.name("last_played_epoch").value(r.last_played_epoch); // alla prossima attivazione il turno avrà un epoch maggiore, per cui gli utenti potranno giocare
+            writer.name("journal_seq").value(r.journal_seq);
+            writer.name("guess_histogram");
+            writer.beginArray(); // [
+            for (int count : r.guess_distribution) {
+                writer.value(count);
+            }
+            writer.endArray(); // ]
+            writer.endObject(); // }
+            total_users++;
+        }
+        writer.endArray(); // ]
+        writer.flush();
+        return total_users;
+    }
+
+    private static int writeBinary(FileOutputStream output, Collection<User> toWrite) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 64 * 1024));
+        out.write(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(toWrite.size());
+        int total_users = 0;
+        for (User user : toWrite) {
+            Record r = new Record(user);
+            writeString(out, r.username);
+            writeString(out, r.password);
+            out.writeInt(r.total_played_games);
+            out.writeInt(r.total_games_won);
+            out.writeInt(r.current_winstreak);
+            out.writeInt(r.longest_winstreak);
+            out.writeLong(r.last_played_epoch);
+            out.writeLong(r.journal_seq);
+            for (int count : r.guess_distribution) {
+                out.writeInt(count);
+            }
+            total_users++;
+        }
+        if (total_users != toWrite.size()) { // il numero di utenti è già stato scritto nell'header
+            throw new IOException("collezione di utenti modificata durante la scrittura");
+        }
+        out.flush();
+        return total_users;
+    }
+
+    /**
+     * Strumento da riga di comando per convertire un file di utenti da un formato all'altro:
+     * java UserStore json|binary <file di input> <file di output>
+     */
+    public static void main(String[] args) {
+        if (args.length != 3 || !(args[0].equals("json") || args[0].equals("binary"))) {
+            System.err.println("Uso: java UserStore json|binary <file di input> <file di output>");
+            System.exit(1);
+        }
+        try {
+            List<User> users = new ArrayList<>();
+            read(new File(args[1]), users::add);
+            int total_users = write(new File(args[2]), users, args[0].equals("binary"));
+            System.out.println("[DEBUG] Convertiti " + total_users + " utenti da " + args[1] + " a " + args[2] + " (formato " + args[0] + ")");
+        } catch (IOException ex) {
+            System.err.println("Errore nella conversione del file " + args[1]);
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
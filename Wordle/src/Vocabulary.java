@@ -0,0 +1,200 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Classe che rappresenta il vocabolario del gioco: le parole codificate con PackedWord, ordinate e senza duplicati.
+ * Le parole possono risiedere in un long[] sullo heap (vocabolario letto dal file di testo) oppure in un file indice
+ * mappato in memoria, nel qual caso sullo heap non c'è alcun oggetto per parola e l'avvio non dipende dalla dimensione del vocabolario.
+ * Formato del file indice (big-endian):
+ * - header: [MAGIC 4 byte][versione u16][dimensione record u16][numero parole u32][riservato u32]
+ * - record: le parole codificate, un long (8 byte) per parola, in ordine crescente
+ * Il file indice si ottiene dal vocabolario testuale con: java Vocabulary words.txt words.idx
+ */
+public class Vocabulary {
+
+    public static final byte[] MAGIC = {'W', 'V', 'O', 'C'};
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 8;
+
+    private final LongBuffer words; // le parole ordinate, sullo heap o nella regione mappata del file indice
+    private final int size;
+
+    private Vocabulary(LongBuffer words) {
+        this.words = words;
+        this.size = words.limit();
+    }
+
+    /**
+     * Metodo che legge un vocabolario testuale (una parola per riga) e lo mantiene sullo heap
+     * @param file Il percorso del file di testo
+     * @return     Il vocabolario letto
+     * @throws IOException se si verifica un errore durante la lettura
+     */
+    public static Vocabulary load(String file) throws IOException {
+        return new Vocabulary(LongBuffer.wrap(readWords(file)));
+    }
+
+    /**
+     * Metodo che mappa in memoria un file indice prodotto da compile
+     * @param file Il percorso del file indice
+     * @return     Il vocabolario mappato
+     * @throws IOException se il file non esiste, non è leggibile o non è un indice valido
+     */
+    public static Vocabulary map(String file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            // la mappatura rimane valida anche dopo la chiusura del canale
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.limit() < HEADER_SIZE) {
+                throw new IOException("indice " + file + " troppo corto");
+            }
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (mapped.get(i) != MAGIC[i]) {
+                    throw new IOException(file + " non è un indice del vocabolario");
+                }
+            }
+            int version = mapped.getShort(4) & 0xFFFF;
+            int recordSize = mapped.getShort(6) & 0xFFFF;
+            long count = mapped.getInt(8) & 0xFFFFFFFFL;
+            if (version != VERSION || recordSize != RECORD_SIZE) {
+                throw new IOException("versione dell'indice " + file + " non supportata");
+            }
+            if (HEADER_SIZE + count * RECORD_SIZE != mapped.limit()) {
+                throw new IOException("indice " + file + " troncato o corrotto");
+            }
+            mapped.position(HEADER_SIZE);
+            return new Vocabulary(mapped.slice().asLongBuffer());
+        }
+    }
+
+    /**
+     * Metodo che compila un vocabolario testuale nel formato indice letto da map
+     * @param wordsFile Il percorso del file di testo (una parola per riga)
+     * @param indexFile Il percorso del file indice da scrivere
+     * @return          Il numero di parole scritte nell'indice
+     * @throws IOException se si verifica un errore durante la lettura o la scrittura
+     */
+    public static int compile(String wordsFile, String indexFile) throws IOException {
+        long[] words = readWords(wordsFile);
+
+        // scrivo su un file temporaneo e poi lo rinomino, così un server avviato nel frattempo non mappa mai un indice incompleto
+        File tmp = new File(indexFile + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.write(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(RECORD_SIZE);
+            out.writeInt(words.length);
+            out.writeInt(0);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+        }
+        File index = new File(indexFile);
+        if (index.exists() && !index.delete() || !tmp.renameTo(index)) {
+            throw new IOException("impossibile scrivere l'indice " + indexFile);
+        }
+        return words.length;
+    }
+
+    // Legge le parole del file di testo, le codifica, le ordina ed elimina i duplicati
+    private static long[] readWords(String file) throws IOException {
+        long[] words = new long[1024];
+        int count = 0;
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = br.readLine()) != null) { // per ipotesi dal vocabolario fornito si ha che 1 riga = 1 parola
+                long code = PackedWord.encode(line.trim());
+                if (code == PackedWord.INVALID) { // riga vuota o parola non codificabile (più di 12 lettere o caratteri diversi da 'a'-'z')
+                    continue;
+                }
+                if (count == words.length) {
+                    words = Arrays.copyOf(words, words.length * 2);
+                }
+                words[count++] = code;
+            }
+        }
+        Arrays.sort(words, 0, count); // già ordinato per ipotesi, ma la ricerca binaria è corretta solo su un array ordinato
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || words[i] != words[distinct - 1]) {
+                words[distinct++] = words[i];
+            }
+        }
+        return Arrays.copyOf(words, distinct);
+    }
+
+    /**
+     * Metodo che verifica se una parola codificata appartiene al vocabolario
+     * @param word La parola codificata (vedi PackedWord)
+     * @return     True se la parola appartiene al vocabolario, false altrimenti
+     */
+    public boolean contains(long word) {
+        if (word == PackedWord.INVALID) {
+            return false;
+        }
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) { // ricerca binaria, l'ordine dei codici coincide con l'ordine lessicografico delle parole
+            int mid = (low + high) >>> 1;
+            long midWord = words.get(mid);
+            if (midWord < word) {
+                low = mid + 1;
+            } else if (midWord > word) {
+                high = mid - 1;
+            } else { // parola trovata
+                return true;
+            }
+        }
+        return false; // parola non trovata
+    }
+
+    /**
+     * Metodo che restituisce la parola in una data posizione del vocabolario
+     * @param index La posizione, nell'intervallo [0, size() - 1]
+     * @return      La parola codificata
+     */
+    public long get(int index) {
+        return words.get(index);
+    }
+
+    /**
+     * Metodo che restituisce il numero di parole del vocabolario
+     * @return Il numero di parole
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Strumento da riga di comando per compilare il file indice: java Vocabulary words.txt words.idx
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Uso: java Vocabulary <vocabolario.txt> <indice>");
+            System.exit(1);
+        }
+        try {
+            int count = compile(args[0], args[1]);
+            System.out.println("[DEBUG] Scritte " + count + " parole nell'indice " + args[1]);
+        } catch (IOException ex) {
+            System.err.println("Errore nella compilazione del vocabolario " + args[0]);
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
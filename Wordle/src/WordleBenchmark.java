@@ -0,0 +1,511 @@
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Benchmark dei percorsi critici del server, eseguibili offline con un unico comando (ant bench, oppure
+ * java WordleBenchmark [chiave=valore ...]). Lo stato del server viene inizializzato come all'avvio di WordleServerMain
+ * (utenti, journal, vocabolario, turno corrente), ma con i file in una cartella temporanea e senza aprire socket.
+ * Benchmark eseguiti:
+ * - isInVocabulary: ricerca nel vocabolario reale (metà parole presenti e metà assenti)
+ * - provideClue: indizi di una guessed word, con e senza la cache del turno
+ * - statistics: risposta a SENDMESTATISTICS, già codificata o da ricodificare dopo una partita
+ * - commandParsing: riconoscimento dei comandi del protocollo testuale
+ * - clientHandler: ClientHandler.run su una socket in memoria, con una sessione completa per utente (tempo per comando)
+ * - loadUsers / saveUsers: loadUsersFromJSON e snapshot completo degli utenti, per ogni numero di utenti e formato
+ * I benchmark sui singoli metodi misurano il tempo medio per operazione (ns/op) su più iterazioni di durata fissa,
+ * precedute da un riscaldamento; caricamento e salvataggio degli utenti sono misurati a singola esecuzione (ms/op).
+ * I risultati sono scritti in JSON, nello stesso formato dei risultati di JMH (benchmark, mode, params, primaryMetric),
+ * in modo da poter confrontare esecuzioni diverse. Parametri (tutti facoltativi):
+ * - words=src/words.txt        vocabolario
+ * - out=bench-results.json     file dei risultati
+ * - filter=regex               esegue solo i benchmark il cui nome contiene una corrispondenza
+ * - users=10000,1000000        numero di utenti dei file generati (10000000 richiede qualche GB di heap)
+ * - warmup=1000 time=1000      durata in ms del riscaldamento e di ogni iterazione misurata
+ * - iterations=5 shots=3       iterazioni misurate e esecuzioni dei benchmark a singola esecuzione
+ */
+public class WordleBenchmark {
+
+    // Un lotto di operazioni del benchmark, che restituisce il numero di operazioni eseguite
+    private interface Batch {
+        int run() throws Exception;
+    }
+
+    // Una singola esecuzione di un benchmark a singola esecuzione
+    private interface Shot {
+        void run() throws Exception;
+    }
+
+    private static final int BATCH = 1024; // operazioni per lotto nei benchmark sui singoli metodi
+
+    private static String WORDS = "src/words.txt";
+    private static String OUT = "bench-results.json";
+    private static Pattern FILTER = Pattern.compile("");
+    private static String USERS = "10000,1000000";
+    private static long WARMUP = 1000;
+    private static long TIME = 1000;
+    private static int ITERATIONS = 5;
+    private static int SHOTS = 3;
+
+    private static final List<Map<String, Object>> results = new ArrayList<>();
+    private static volatile long sink; // impedisce al JIT di eliminare il codice misurato
+
+    public static void main(String[] args) throws Exception {
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                System.err.println("Uso: java WordleBenchmark [words=..] [out=..] [filter=..] [users=..] [warmup=..] [time=..] [iterations=..] [shots=..]");
+                System.exit(1);
+            }
+            String key = arg.substring(0, eq), value = arg.substring(eq + 1);
+            switch (key) {
+                case "words": WORDS = value; break;
+                case "out": OUT = value; break;
+                case "filter": FILTER = Pattern.compile(value); break;
+                case "users": USERS = value; break;
+                case "warmup": WARMUP = Long.parseLong(value); break;
+                case "time": TIME = Long.parseLong(value); break;
+                case "iterations": ITERATIONS = Integer.parseInt(value); break;
+                case "shots": SHOTS = Integer.parseInt(value); break;
+                default:
+                    System.err.println("Parametro sconosciuto: " + key);
+                    System.exit(1);
+            }
+        }
+
+        File dir = Files.createTempDirectory("wordle-bench").toFile();
+        try {
+            setupServer(dir);
+            List<byte[]> words = readWords(WORDS);
+
+            benchVocabulary(words);
+            benchClues(words);
+            benchStatistics();
+            benchCommandParsing(words);
+            benchClientHandler(words);
+            for (String users : USERS.split(",")) {
+                benchUserStore(dir, Integer.parseInt(users.trim()), "json");
+                benchUserStore(dir, Integer.parseInt(users.trim()), "binary");
+            }
+        } finally {
+            deleteAll(dir);
+        }
+
+        writeResults(OUT);
+        System.out.println("[DEBUG] Risultati scritti in " + OUT);
+        System.exit(0); // termina anche i thread del server (journal, pool degli shard)
+    }
+
+    /**
+     * Metodo che inizializza lo stato del server come WordleServerMain.main, con i file in una cartella temporanea
+     */
+    private static void setupServer(File dir) throws IOException {
+        WordleServerMain.VOCABULARY = WORDS;
+        WordleServerMain.VOCABULARY_INDEX = new File(dir, "words.idx").getPath();
+        WordleServerMain.USER_DB = new File(dir, "users.json").getPath();
+        WordleServerMain.USER_STORE_FORMAT = "json";
+        WordleServerMain.USER_SHARDS = 4;
+        WordleServerMain.USER_JOURNAL = new File(dir, "users.journal").getPath();
+        WordleServerMain.JOURNAL_COMPACT_SIZE = Long.MAX_VALUE; // gli snapshot sono scritti solo dal benchmark saveUsers
+        WordleServerMain.SNAPSHOT_MAX_DELTAS = 8;
+        WordleServerMain.WORD_STATE = new File(dir, "word_state.properties").getPath();
+        WordleServerMain.WORD_UPDATE_DELAY = 1440;
+        WordleServerMain.CLUE_CACHE_SIZE = 4096;
+        WordleServerMain.LOG_COMMANDS = false;
+
+        WordleServerMain.loadUsersFromJSON();
+        WordleServerMain.replayJournal();
+        WordleServerMain.loadVocabulary();
+        WordleServerMain.loadWordState();
+        WordleServerMain.pickNewWord();
+    }
+
+    private static void benchVocabulary(List<byte[]> words) throws Exception {
+        // metà parole del vocabolario e metà parole assenti (le stesse lettere in ordine inverso)
+        byte[][] lookups = new byte[Integer.highestOneBit(Math.min(words.size(), 8192)) * 2][]; // potenza di 2
+        Random rand = new Random(1);
+        for (int i = 0; i < lookups.length; i += 2) {
+            byte[] word = words.get(rand.nextInt(words.size()));
+            byte[] reversed = new byte[word.length];
+            for (int j = 0; j < word.length; j++) {
+                reversed[j] = word[word.length - 1 - j];
+            }
+            lookups[i] = word;
+            lookups[i + 1] = reversed;
+        }
+        measure("isInVocabulary", params(), new Batch() {
+            int next = 0;
+
+            @Override
+            public int run() {
+                long found = 0;
+                for (int i = 0; i < BATCH; i++) {
+                    byte[] word = lookups[next++ & (lookups.length - 1)];
+                    if (WordleServerMain.isInVocabulary(word, 0, word.length)) {
+                        found++;
+                    }
+                }
+                sink += found;
+                return BATCH;
+            }
+        });
+    }
+
+    private static void benchClues(List<byte[]> words) throws Exception {
+        Round round = WordleServerMain.getCurrentRound();
+        long[] guesses = randomGuesses(words, 256); // poche parole frequenti, come le parole di apertura più comuni
+        for (int cacheSize : new int[]{WordleServerMain.CLUE_CACHE_SIZE, 0}) {
+            Round measured = new Round(round.getEpoch(), round.getSecretCode(), cacheSize, 0);
+            byte[] clue = new byte[PackedWord.MAX_LETTERS];
+            measure("provideClue", params("cache", cacheSize), new Batch() {
+                int next = 0;
+
+                @Override
+                public int run() {
+                    long letters = 0;
+                    for (int i = 0; i < BATCH; i++) {
+                        letters += measured.clue(guesses[next++ & (guesses.length - 1)], clue);
+                    }
+                    sink += letters + clue[0];
+                    return BATCH;
+                }
+            });
+        }
+    }
+
+    private static void benchStatistics() throws Exception {
+        User user = new User("bench", "pw", 120, 90, 3, 14, 0, new int[]{3, 10, 20, 30, 15, 7, 3, 1, 1, 0, 0, 0});
+        ReplyWriter[] writers = {new TextReplyWriter(), new BinaryReplyWriter()};
+        String[] protocols = {"text", "binary"};
+        for (int p = 0; p < writers.length; p++) {
+            ReplyWriter writer = writers[p];
+            // risposta già codificata: il caso di SENDMESTATISTICS ripetuto senza partite concluse nel frattempo
+            measure("statistics", params("protocol", protocols[p], "snapshot", "cached"), () -> {
+                for (int i = 0; i < BATCH; i++) {
+                    writer.statistics(user);
+                    sink += writer.size;
+                    writer.size = 0;
+                }
+                return BATCH;
+            });
+        }
+        // nuova istanza delle statistiche dopo una partita e codifica della risposta (il costo di SENDMESTATISTICS prima della cache)
+        UserStats stats = user.getStats();
+        measure("statistics", params("protocol", "text", "snapshot", "rebuilt"), () -> {
+            for (int i = 0; i < BATCH; i++) {
+                sink += stats.win(1 + (i & 7)).textReply().length;
+            }
+            return BATCH;
+        });
+        measure("statistics", params("protocol", "binary", "snapshot", "rebuilt"), () -> {
+            for (int i = 0; i < BATCH; i++) {
+                sink += stats.win(1 + (i & 7)).binaryReply().length;
+            }
+            return BATCH;
+        });
+    }
+
+    private static void benchCommandParsing(List<byte[]> words) throws Exception {
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        Random rand = new Random(2);
+        for (int i = 0; i < BATCH; i++) {
+            switch (i % 4) {
+                case 0: lines.write(ascii("SENDWORD," + new String(words.get(rand.nextInt(words.size())), StandardCharsets.US_ASCII) + "\n")); break;
+                case 1: lines.write(ascii("LOGIN,user" + i + ",password" + i + "\n")); break;
+                case 2: lines.write(ascii("PLAYWORDLE\n")); break;
+                default: lines.write(ascii("SENDMESTATISTICS\n"));
+            }
+        }
+        byte[] buf = lines.toByteArray();
+        Command cmd = new Command();
+        measure("commandParsing", params(), () -> {
+            int from = 0;
+            while (from < buf.length) {
+                int end = from;
+                while (buf[end] != '\n') {
+                    end++;
+                }
+                CommandParser.parse(buf, from, end, cmd);
+                sink += cmd.getOp();
+                from = end + 1;
+            }
+            return BATCH;
+        });
+    }
+
+    private static void benchClientHandler(List<byte[]> words) throws Exception {
+        String secret = WordleServerMain.getCurrentRound().getSecretWord();
+        long[] guesses = randomGuesses(words, 64);
+        for (int i = 0; i < guesses.length; i++) {
+            if (guesses[i] == WordleServerMain.getCurrentRound().getSecretCode()) { // ogni partita deve terminare con una sconfitta
+                guesses[i] = guesses[(i + 1) % guesses.length];
+            }
+        }
+        int[] clients = {0};
+        measure("clientHandler", params(), () -> {
+            // sessione completa di un nuovo utente: registrazione, login, partita persa in 12 tentativi, richieste successive e logout
+            int id = clients[0]++;
+            String name = "bench" + id;
+            StringBuilder session = new StringBuilder();
+            session.append("REGISTER,").append(name).append(",pw\nLOGIN,").append(name).append(",pw\nPLAYWORDLE\n");
+            for (int i = 0; i < User.MAX_ATTEMPTS; i++) {
+                String guess = PackedWord.decode(guesses[(id + i) & (guesses.length - 1)]);
+                session.append("SENDWORD,").append(guess).append('\n');
+            }
+            for (int i = 0; i < 200; i++) {
+                session.append("SENDMESTATISTICS\nSENDWORD,").append(secret).append("\nPLAYWORDLE\nREGISTER,").append(name).append(",pw\n");
+            }
+            session.append("LOGOUT,").append(name).append('\n');
+            int commands = 3 + User.MAX_ATTEMPTS + 200 * 4 + 1;
+
+            new ClientHandler(new MemorySocket(ascii(session.toString())), id).run();
+            return commands;
+        });
+    }
+
+    private static void benchUserStore(File dir, int count, String format) throws Exception {
+        if (!FILTER.matcher("loadUsers").find() && !FILTER.matcher("saveUsers").find()) {
+            return;
+        }
+        // file generato nel formato precedente alla suddivisione in shard: il primo caricamento lo suddivide
+        File data = new File(dir, "users-" + count + "-" + format);
+        data.mkdirs();
+        WordleServerMain.USER_DB = new File(data, "users.json").getPath();
+        WordleServerMain.USER_STORE_FORMAT = format;
+        System.out.println("[DEBUG] Generazione di " + count + " utenti in formato " + format);
+        UserStore.write(new File(WordleServerMain.USER_DB), syntheticUsers(count), format.equals("binary"));
+        WordleServerMain.loadUsersFromJSON();
+
+        Map<String, Object> params = params("users", count, "format", format);
+        measureShots("loadUsers", params, WordleServerMain::loadUsersFromJSON);
+        measureShots("saveUsers", params, () -> WordleServerMain.compactUsers(true));
+        deleteAll(data);
+    }
+
+    // Utenti sintetici con statistiche casuali
+    private static List<User> syntheticUsers(int count) {
+        Random rand = new Random(3);
+        List<User> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int[] histogram = new int[User.MAX_ATTEMPTS];
+            int won = 0;
+            for (int j = 0; j < 6; j++) {
+                histogram[j] = rand.nextInt(20);
+                won += histogram[j];
+            }
+            int played = won + rand.nextInt(20);
+            users.add(new User("user" + i, "password" + i, played, won, rand.nextInt(5), 5 + rand.nextInt(10), rand.nextInt(100), histogram));
+        }
+        return users;
+    }
+
+    /**
+     * Socket in memoria: il ClientHandler legge i comandi da un array di byte e le risposte vengono scartate
+     */
+    private static class MemorySocket extends Socket {
+        private final InputStream in;
+        private final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) { }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                sink += len;
+            }
+        };
+
+        MemorySocket(byte[] requests) {
+            this.in = new ByteArrayInputStream(requests);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        @Override
+        public int getPort() {
+            return 0;
+        }
+
+        @Override
+        public synchronized void close() { }
+    }
+
+    /**
+     * Metodo che misura il tempo medio per operazione: riscaldamento per WARMUP ms, poi ITERATIONS iterazioni da TIME ms
+     */
+    private static void measure(String name, Map<String, Object> params, Batch batch) throws Exception {
+        if (!FILTER.matcher(name).find()) {
+            return;
+        }
+        long end = System.nanoTime() + WARMUP * 1000000;
+        while (System.nanoTime() < end) {
+            batch.run();
+        }
+        double[] samples = new double[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            long ops = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                ops += batch.run();
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < TIME * 1000000);
+            samples[i] = (double) elapsed / ops;
+        }
+        record(name, "avgt", params, samples, "ns/op");
+    }
+
+    /**
+     * Metodo che misura operazioni lunghe: un'esecuzione di riscaldamento e SHOTS esecuzioni misurate
+     */
+    private static void measureShots(String name, Map<String, Object> params, Shot shot) throws Exception {
+        if (!FILTER.matcher(name).find()) {
+            return;
+        }
+        shot.run();
+        double[] samples = new double[SHOTS];
+        for (int i = 0; i < SHOTS; i++) {
+            long start = System.nanoTime();
+            shot.run();
+            samples[i] = (System.nanoTime() - start) / 1e6;
+        }
+        record(name, "ss", params, samples, "ms/op");
+    }
+
+    private static void record(String name, String mode, Map<String, Object> params, double[] samples, String unit) {
+        double mean = 0;
+        for (double sample : samples) {
+            mean += sample;
+        }
+        mean /= samples.length;
+        double variance = 0;
+        for (double sample : samples) {
+            variance += (sample - mean) * (sample - mean);
+        }
+        double error = samples.length > 1 ? Math.sqrt(variance / (samples.length - 1)) : 0; // deviazione standard
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("benchmark", name);
+        result.put("mode", mode);
+        result.put("params", params);
+        result.put("score", mean);
+        result.put("scoreError", error);
+        result.put("scoreUnit", unit);
+        result.put("rawData", samples);
+        results.add(result);
+        System.out.printf("%-16s %-40s %14.3f +- %10.3f %s%n", name, params, mean, error, unit);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeResults(String file) throws IOException {
+        try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writer.setIndent("  ");
+            writer.beginArray();
+            for (Map<String, Object> result : results) {
+                writer.beginObject();
+                writer.name("benchmark").value((String) result.get("benchmark"));
+                writer.name("mode").value((String) result.get("mode"));
+                writer.name("params").beginObject();
+                for (Map.Entry<String, Object> param : ((Map<String, Object>) result.get("params")).entrySet()) {
+                    writer.name(param.getKey()).value(String.valueOf(param.getValue()));
+                }
+                writer.endObject();
+                writer.name("primaryMetric").beginObject();
+                writer.name("score").value((double) result.get("score"));
+                writer.name("scoreError").value((double) result.get("scoreError"));
+                writer.name("scoreUnit").value((String) result.get("scoreUnit"));
+                writer.name("rawData").beginArray().beginArray();
+                for (double sample : (double[]) result.get("rawData")) {
+                    writer.value(sample);
+                }
+                writer.endArray().endArray();
+                writer.endObject();
+                writer.endObject();
+            }
+            writer.endArray();
+        }
+    }
+
+    // Metodi di utilità
+
+    private static Map<String, Object> params(Object... keyValues) {
+        Map<String, Object> params = new LinkedHashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            params.put((String) keyValues[i], keyValues[i + 1]);
+        }
+        return params;
+    }
+
+    private static List<byte[]> readWords(String file) throws IOException {
+        List<byte[]> words = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (PackedWord.encode(line.trim()) != PackedWord.INVALID) {
+                    words.add(ascii(line.trim()));
+                }
+            }
+        }
+        return words;
+    }
+
+    // Parole casuali del vocabolario, codificate (count deve essere una potenza di 2)
+    private static long[] randomGuesses(List<byte[]> words, int count) {
+        Random rand = new Random(4);
+        long[] guesses = new long[count];
+        for (int i = 0; i < count; i++) {
+            byte[] word = words.get(rand.nextInt(words.size()));
+            guesses[i] = PackedWord.encode(word, 0, word.length);
+        }
+        return guesses;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -1,20 +1,27 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.net.Socket;
-import java.net.SocketException;
-import java.net.UnknownHostException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 import java.util.Scanner;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -33,7 +40,10 @@ public class WordleClientMain {
     public static String MULTICAST_GROUP_ADDRESS;
     public static int MULTICAST_GROUP_PORT;
 
-    public static int SERVER_NOTIFICATION_PORT; // porta usata dal client per inviare al server i resoconti delle proprie partite usando UDP
+    public static String PROTOCOL; // protocollo usato per comunicare con il server: "text" (una riga per comando) o "binary" (vedi BinaryProtocol)
+    public static String NOTIFICATION_MODE; // ricezione delle notifiche: "multicast" (gruppo multicast), "push" (inviate dal server sulla connessione TCP)
+                                            // o "fetch" (richieste al server con showMeSharing, vedi ShareLog)
+    private static final int MAX_NOTIFICATIONS = 256; // notifiche non ancora visualizzate mantenute dal client, oltre vengono scartate le più vecchie
     private static MulticastSocket multicastSocket; // socket su cui il client riceve i messaggi da un gruppo di multicast
     private static InetAddress group; // identificherà il gruppo di multicast
 
@@ -43,16 +53,19 @@ public class WordleClientMain {
     private static Socket clientSocket;
     private static PrintWriter out;
     private static Scanner in;
+    private static OutputStream binaryOut; // stream usati al posto di out e in con il protocollo binario
+    private static DataInputStream binaryIn;
+    private static BlockingQueue<String> replies; // in modalità push le risposte vengono lette dal thread delle notifiche e passate qui
 
     private static User currentUser = new User(); // inizialmente un placeholder (utente fittizio), poi sostituito dall'utente corrispondente a quello specificato al login
     private static boolean logged_out = false; // variabile aggiornata al logout, comporta la terminazione del programma
+    private static volatile boolean logging_out = false; // richiesta di logout inviata, il server chiuderà la connessione
     
     private static boolean game_started = false; // per impedire che si possa invocare sendWord senza aver invocato prima playWORDLE()
     private static boolean game_finished = false; // per consentire la condivisione dei tentativi per l'ultima partita giocata solo a partita finita
-    private static boolean has_won = false; // variabile per il messaggio da condividere al gruppo multicast che verrà mandato al server, che deve includere oltre ai tentativi se l'utente ha vinto o meno
     
-    private static ArrayList<String> notifications = new ArrayList<>(); // notifiche inviate dal server riguardo alle partite di altri utenti
-    private static ArrayList<String> userGuessesCodified; // tentativi dell'utente per la partita in corso (codificati perchè non mostro le lettere ma i simboli '?','X','+' associati ai colori)
+    private static final ArrayDeque<String> notifications = new ArrayDeque<>(); // notifiche inviate dal server riguardo alle partite di altri utenti, accedute in mutua esclusione
+    private static long lastSharingSeq = 0; // numero di sequenza dell'ultimo risultato ricevuto con SHOWMESHARING
 
     /**
      * Metodo che legge il file di configurazione del client.
@@ -66,15 +79,73 @@ public class WordleClientMain {
             prop.load(input);
             HOSTNAME = prop.getProperty("HOSTNAME");
             PORT = Integer.parseInt(prop.getProperty("PORT"));
-            SERVER_NOTIFICATION_PORT = Integer.parseInt(prop.getProperty("SERVER_NOTIFICATION_PORT"));
             MULTICAST_GROUP_ADDRESS = prop.getProperty("MULTICAST_GROUP_ADDRESS");
             MULTICAST_GROUP_PORT = Integer.parseInt(prop.getProperty("MULTICAST_GROUP_PORT"));
+            PROTOCOL = prop.getProperty("PROTOCOL", "text");
+            NOTIFICATION_MODE = prop.getProperty("NOTIFICATION_MODE", "multicast");
         } catch (IOException ex) {
             System.err.println("Errore durante la lettura del file di configurazione.");
             ex.printStackTrace();
         }
     }
 
+    /**
+     * Metodo che invia una richiesta al server WORDLE e ne attende la risposta.
+     * Con il protocollo binario la risposta viene convertita nel formato testuale, in modo che i comandi la gestiscano allo stesso modo.
+     * In modalità push, dopo l'iscrizione alle notifiche, la risposta viene letta dal thread che riceve le notifiche (vedi receivePushNotifications).
+     *
+     * @param op   Il codice del comando (vedi Command)
+     * @param args Gli argomenti del comando
+     * @return La risposta del server
+     */
+    private static String sendRequest(int op, String... args) {
+        try {
+            if (binaryOut == null) { // protocollo testuale: OP,arg1,arg2
+                String request = CommandParser.opName(op);
+                for (String arg : args) {
+                    request += "," + arg;
+                }
+                out.println(request);
+            } else {
+                ByteArrayOutputStream frame = new ByteArrayOutputStream();
+                BinaryProtocol.encodeRequest(frame, op, args);
+                binaryOut.write(frame.toByteArray());
+                binaryOut.flush();
+            }
+            return replies != null ? replies.take() : readReply();
+        } catch (IOException | InterruptedException ex) {
+            System.err.println("Errore nella comunicazione con il server.");
+            ex.printStackTrace();
+            return "";
+        }
+    }
+
+    /**
+     * Metodo che legge dalla connessione la prossima risposta (o notifica) inviata dal server, nel formato testuale
+     *
+     * @return La risposta del server
+     * @throws IOException se si verifica un errore nella lettura o il server ha chiuso la connessione
+     */
+    private static String readReply() throws IOException {
+        if (binaryOut == null) {
+            try {
+                String reply = in.nextLine();
+                if (reply.startsWith(ReplyWriter.SHARING_PREFIX)) { // "SHARING:<numero di sequenza>:<n>" seguita da n righe, lette come un'unica risposta
+                    StringBuilder sharing = new StringBuilder(reply);
+                    int count = Integer.parseInt(reply.substring(reply.lastIndexOf(':') + 1));
+                    for (int i = 0; i < count; i++) {
+                        sharing.append('\n').append(in.nextLine());
+                    }
+                    reply = sharing.toString();
+                }
+                return reply;
+            } catch (NoSuchElementException ex) {
+                throw new IOException("connessione chiusa dal server");
+            }
+        }
+        return BinaryProtocol.readReplyAsText(binaryIn);
+    }
+
     /* NB: In tutti i comandi con più componenti (e.g: register, login, logout) vado ad usare la virgola come delimitatore tra i vari campi, ciò semplifica il parsing lato server rispetto all'uso delle parentesi tonde */
     
     /**
@@ -98,8 +169,7 @@ public class WordleClientMain {
             return;
         }
 
-        out.println("REGISTER" + "," + username + "," + password); // Invio al server la richiesta di registrazione con username e password dell'utente
-        String response = in.nextLine(); // recupero la risposta alla richiesta inviata
+        String response = sendRequest(Command.REGISTER, username, password); // Invio al server la richiesta di registrazione con username e password dell'utente e recupero la risposta
 
         switch (response) {
             case "SUCCESS":
@@ -113,6 +183,14 @@ public class WordleClientMain {
             case "EMPTY":
                 System.err.println("Errore, la password non può essere vuota.");
                 break;
+
+            case "TOO_LONG":
+                System.err.println("Errore, username e password non possono superare " + User.MAX_FIELD_BYTES + " byte.");
+                break;
+
+            case "ERROR": // la registrazione non è stata salvata dal server
+                System.err.println("Errore del server durante la registrazione, riprovare.");
+                break;
         }
     }
 
@@ -138,8 +216,7 @@ public class WordleClientMain {
         }
 
         // Mando al server la richiesta di autenticazione al servizio e recupero la sua risposta
-        out.println("LOGIN" + "," + username + "," + password);
-        String response = in.nextLine();
+        String response = sendRequest(Command.LOGIN, username, password);
 
         switch (response) {
             case "SUCCESS":
@@ -147,8 +224,13 @@ public class WordleClientMain {
                 currentUser = new User(username, password); // sostituisco l'utente fittizio definito all'avvio del programma con quello associato alle credenziali di login
                 currentUser.setLoggedIn(); // l'utente è ora loggato, questo consentirà di fare controlli sulle varie operazioni che richiedono una previa autenticazione (e.g: logout, playWORDLE(), sendWord, ..)
 
-                // dopo la fase di login (in caso di successo), ogni client si unisce a un gruppo di multicast di cui fa parte anche il server
-                joinMulticastGroup();
+                // dopo la fase di login (in caso di successo), ogni client si unisce a un gruppo di multicast di cui fa parte anche il server,
+                // oppure chiede al server di ricevere le notifiche sulla connessione
+                if (NOTIFICATION_MODE.equals("push")) {
+                    subscribeNotifications();
+                } else if (!NOTIFICATION_MODE.equals("fetch")) { // in modalità fetch le notifiche vengono richieste da showMeSharing
+                    joinMulticastGroup();
+                }
                 break;
 
             case "NON_EXISTING_USER":
@@ -186,17 +268,20 @@ public class WordleClientMain {
         }
 
         // Mando al server la richiesta di disconnessione dal servizio e recupero la sua risposta
-        out.println("LOGOUT" + "," + username);
-        String response = in.nextLine();
+        logging_out = true;
+        String response = sendRequest(Command.LOGOUT, username);
 
         switch (response) {
             case "ERROR": // L'utente ha inserito nell'username un nome che non è il suo
+                logging_out = false;
                 System.err.println("Errore nell'operazione richiesta, riprovare.");
                 break;
 
             case "SUCCESS":
                 currentUser = new User(); // Rimuovo le informazioni memorizzate dell'utente precedentemente autenticato
-                leaveMulticastGroup(); // Con il logout viene lasciato il gruppo di multicast a cui l'utente si è unito al momento del login
+                if (multicastSocket != null) {
+                    leaveMulticastGroup(); // Con il logout viene lasciato il gruppo di multicast a cui l'utente si è unito al momento del login
+                }
                 logged_out = true; // questo assegnamento al flag logged_out consente la uscita dal ciclo while(true) di ascolto dei comandi e la terminazione del client
                 System.out.println("Disconnessione avvenuta con successo, uscita dal programma in corso. A presto!");
 
@@ -224,8 +309,7 @@ public class WordleClientMain {
         }
 
         // Mando al server la richiesta di inizio gioco e recupero la sua risposta
-        out.println("PLAYWORDLE");
-        String response = in.nextLine();
+        String response = sendRequest(Command.PLAYWORDLE);
 
         switch (response) {
             case "ALREADY_PLAYED":
@@ -237,7 +321,10 @@ public class WordleClientMain {
                 game_started = true;
                 game_finished = false;
                 // currentUser.setHas_played();
-                userGuessesCodified = new ArrayList<>(); // azzero le guess word inviate dell'utente (in una partita precedente), se presenti
+                break;
+
+            case "ERROR": // la partecipazione al turno non è stata salvata dal server
+                System.err.println("Errore del server durante l'inizio della partita.");
                 break;
         }
     }
@@ -266,8 +353,7 @@ public class WordleClientMain {
             return;
         }
         // Mando al server la richiesta con la guessed word e recupero la sua risposta
-        out.println("SENDWORD" + "," + guessWord);
-        String response = in.nextLine();
+        String response = sendRequest(Command.SENDWORD, guessWord);
 
         if (response.equals("NOT_IN_VOCABULARY")) {
             System.err.println("La parola inviata non appartiene al vocabolario del gioco, riprovare.");
@@ -282,40 +368,20 @@ public class WordleClientMain {
 //            game_started = false;
             game_finished = true;
 
-            has_won = true;
-            userGuessesCodified.add("[+, +, +, +, +, +, +, +, +, +]"); // aggiungo ai tentativi dell'utente la codifica equivalente a aver indovinato la parola segreta
-
             System.out.println("Vuoi condividere il risultato della partita? Puoi farlo usando il comando share() !");
         } else if (response.startsWith("LOSE")) {
             System.out.println(response);
             // game_started = false;
             game_finished = true;
-            has_won = false;
-
-            // estraggo tentativo dalla risposta e lo aggiungo ai tentativi effettuati dall'utente per la parola segreta corrente
-            userGuessesCodified.add(extractAttemptFromResponse(response));
 
             System.out.println("Vuoi condividere il risultato della partita? Puoi farlo usando il comando share() !");
         } else if (response.startsWith("CLUE")) {
             System.out.println(response);
-
-            // estraggo tentativo dalla risposta e lo aggiungo ai tentativi effettuati dall'utente per la parola segreta corrente
-            userGuessesCodified.add(extractAttemptFromResponse(response));
+        } else if (response.equals("ERROR")) { // esito della partita non salvato dal server
+            System.err.println("Errore del server durante l'invio della parola.");
         }
     }
 
-    /**
-     * Metodo utilità per estrarre un tentativo da una risposta fornita dal server
-     *
-     * @param response Una stringa con la risposta fornita dal server che contiene un tentativo delimitato da parentesi quadre
-     * @return Il tentativo contenuto nella stringa
-     */
-    public static String extractAttemptFromResponse(String response) {
-        // per estrarre il tentativo da stringhe come "CLUE: [?, X, X, X, X, ?, ?, X, X, ?], hai a disposizione 11 tentativi."
-        // oppure "LOSE: [+, X, X, ?, ?, X, X, ?, X, +], la secret word era azygospore. Grazie per aver giocato!" 
-        return response.substring(response.indexOf("["), response.indexOf("]") + 1);
-    }
-
     /**
      * Metodo che mostra all'utente i comandi disponibili.
      */
@@ -351,8 +417,7 @@ public class WordleClientMain {
         }
 
         // Mando al server la richiesta di visualizzazione delle statistiche e recupero la sua risposta
-        out.println("SENDMESTATISTICS");
-        String response = in.nextLine();
+        String response = sendRequest(Command.SENDMESTATISTICS);
 
         System.out.println("=====STATISTICHE=====");
         for (String component : response.split("-")) {
@@ -383,28 +448,22 @@ public class WordleClientMain {
             return;
         }
 
-        // Costruzione della notifica con i risultati dell'ultima partita
-        String msgToShare = "";
-        msgToShare += currentUser.getUsername() + ":" + (has_won ? "WIN" : "LOSE") + ":ATTEMPTS:";
-        msgToShare += "{";
-        for (int i = 0; i < userGuessesCodified.size() - 1; i++) {
-            msgToShare += userGuessesCodified.get(i) + ",";
-        }
-        msgToShare += userGuessesCodified.get(userGuessesCodified.size() - 1) + "}";
+        // Il server condivide il risultato che ha registrato per l'ultima partita dell'utente autenticato su questa connessione
+        String response = sendRequest(Command.SHARE);
 
-        // Creazione del datagram e invio della notifica al server usando UDP
-        try (DatagramSocket ds = new DatagramSocket()) {
-            byte[] msg = msgToShare.getBytes();
-            DatagramPacket dp = new DatagramPacket(msg, msg.length, InetAddress.getByName(HOSTNAME), SERVER_NOTIFICATION_PORT);
-            ds.send(dp);
-        } catch (SocketException | UnknownHostException ex) {
-            System.err.println("Errore nella condivisione con il gruppo multicast.");
-            ex.printStackTrace();
-        } catch (IOException ex) {
-            System.err.println("Errore durante l'invio del datagram al gruppo multicast.");
-        }
+        switch (response) {
+            case "SUCCESS":
+                System.out.println("Messaggio condiviso con successo con il gruppo sociale!");
+                break;
+
+            case "DUPLICATE":
+                System.err.println("Il risultato dell'ultima partita è già stato condiviso.");
+                break;
 
-        System.out.println("Messaggio condiviso con successo con il gruppo sociale!");
+            default: // ERROR
+                System.err.println("Errore, nessuna partita conclusa nel turno corrente da condividere.");
+                break;
+        }
     }
 
     /**
@@ -426,6 +485,47 @@ public class WordleClientMain {
         });
     }
 
+    /**
+     * Metodo per l'iscrizione alle notifiche inviate dal server sulla connessione TCP (modalità push), alternativo a joinMulticastGroup.
+     * Da questo momento il server può inviare notifiche tra una risposta e l'altra, per cui tutto ciò che arriva dalla connessione
+     * viene letto da un thread dedicato, che separa le notifiche dalle risposte.
+     */
+    public static void subscribeNotifications() {
+        String response = sendRequest(Command.SUBSCRIBE);
+        if (!response.equals("SUCCESS")) {
+            System.err.println("Impossibile ricevere le notifiche dal server.");
+            return;
+        }
+        replies = new LinkedBlockingQueue<>();
+        multicast_pool.submit(() -> {
+            receivePushNotifications();
+        });
+    }
+
+    /**
+     * Metodo eseguito dopo subscribeNotifications: legge le notifiche e le risposte inviate dal server sulla connessione,
+     * passando le risposte a sendRequest.
+     */
+    public static void receivePushNotifications() {
+        try {
+            while (!logged_out) {
+                String reply = readReply();
+                if (reply.startsWith(ReplyWriter.NOTIFICATION_PREFIX)) {
+                    if (addNotification(reply.substring(ReplyWriter.NOTIFICATION_PREFIX.length()))) {
+                        System.out.println("[NUOVA NOTIFICA RICEVUTA!] Per leggerla, usa showMeSharing().");
+                    }
+                } else {
+                    replies.put(reply);
+                }
+            }
+        } catch (IOException | InterruptedException ex) {
+            if (!logging_out) { // dopo la risposta al logout il server chiude la connessione
+                System.err.println("Connessione con il server interrotta.");
+                replies.offer(""); // sblocca un'eventuale sendRequest in attesa della risposta
+            }
+        }
+    }
+
     /**
      * Metodo che effettua l'uscita dal gruppo multicast a cui ci eravamo uniti al momento del login.
      */
@@ -453,16 +553,59 @@ public class WordleClientMain {
                 // Ricevo notifiche inviate dal server riguardo alle partite degli altri utenti
                 multicastSocket.receive(notification);
 
-                // Controllo che la notifica non sia di una partita di questo host (perchè vanno ricevute "le notifiche di partite di altri utenti")
-                String notification_msg = new String(notification.getData(), 0, notification.getLength(), "UTF-8");
-                if (!notification_msg.startsWith(currentUser.getUsername())) { // aggiungo solo le notifiche che non sono inviate dal client corrente
-                    notifications.add(notification_msg);
-                    System.out.println("[NUOVA NOTIFICA RICEVUTA!] Per leggerla, usa showMeSharing().");
+                // Il server raggruppa più notifiche in un unico datagram, codificate in forma compatta (vedi ShareRecord)
+                List<String> received = ShareRecord.decode(notification.getData(), notification.getLength());
+                if (received == null) { // notifica testuale
+                    received = Arrays.asList(new String(notification.getData(), 0, notification.getLength(), "UTF-8"));
+                }
+                for (String notification_msg : received) {
+                    if (addNotification(notification_msg)) {
+                        System.out.println("[NUOVA NOTIFICA RICEVUTA!] Per leggerla, usa showMeSharing().");
+                    }
                 }
             } catch (IOException ex) { }
         }
     }
 
+    // Memorizza una notifica ricevuta dal server, se riguarda la partita di un altro utente; restituisce true se è stata memorizzata
+    private static boolean addNotification(String notification_msg) {
+        // Controllo che la notifica non sia di una partita di questo host (perchè vanno ricevute "le notifiche di partite di altri utenti")
+        if (notification_msg.isEmpty() || notification_msg.startsWith(currentUser.getUsername() + ":")) { // aggiungo solo le notifiche che non sono inviate dal client corrente
+            return false;
+        }
+        synchronized (notifications) { // la lista è riempita dal thread delle notifiche e svuotata da showMeSharing
+            if (notifications.size() == MAX_NOTIFICATIONS) {
+                notifications.poll();
+            }
+            notifications.add(notification_msg);
+        }
+        return true;
+    }
+
+    /**
+     * Metodo che richiede al server i risultati condivisi nel turno dopo l'ultimo già ricevuto (modalità fetch), aggiungendoli alle notifiche.
+     * Il server ne restituisce al massimo ShareLog.MAX_FETCH per richiesta, per cui le richieste si ripetono finchè ce ne sono altri.
+     */
+    private static void fetchSharing() {
+        while (true) {
+            String response = sendRequest(Command.SHOWMESHARING, Long.toString(lastSharingSeq));
+            if (!response.startsWith(ReplyWriter.SHARING_PREFIX)) {
+                System.err.println("Errore nella richiesta delle notifiche al server.");
+                return;
+            }
+            // prima riga "SHARING:<numero di sequenza>:<n>", poi una riga per risultato
+            String[] lines = response.split("\n");
+            String[] header = lines[0].split(":");
+            lastSharingSeq = Long.parseLong(header[1]);
+            for (int i = 1; i < lines.length; i++) {
+                addNotification(lines[i]);
+            }
+            if (Integer.parseInt(header[2]) < ShareLog.MAX_FETCH) {
+                return;
+            }
+        }
+    }
+
     /**
      * Metodo che mostra sulla CLI le notifiche inviate dal server riguardo alle partite degli altri utenti
      *
@@ -480,7 +623,18 @@ public class WordleClientMain {
             return;
         }
 
-        if (notifications.isEmpty()) {
+        if (NOTIFICATION_MODE.equals("fetch")) {
+            fetchSharing(); // solo i risultati successivi all'ultimo già ricevuto
+        }
+
+        // una volta viste le notifiche vengono cancellate, in modo da far vedere ogni volta le notifiche nuove rispetto all'invocazione precedente di showMeSharing() da parte dell'utente
+        List<String> received;
+        synchronized (notifications) {
+            received = new ArrayList<>(notifications);
+            notifications.clear();
+        }
+
+        if (received.isEmpty()) {
             System.err.println("Nessuna notifica da visualizzare riguardo alle partite degli altri utenti.");
             return;
         }
@@ -488,15 +642,12 @@ public class WordleClientMain {
         // Visualizzazione delle notifiche ricevute
         int index = 1;
         System.out.println("=====NOTIFICHE=====");
-        for (String notification : notifications) {
+        for (String notification : received) {
             System.out.print("[" + index + "]");
             System.out.println(notification);
             index++;
         }
         System.out.println("===================");
-
-        // una volta viste le notifiche vengono cancellate, in modo da far vedere ogni volta le notifiche nuove rispetto all'invocazione precedente di showMeSharing() da parte dell'utente
-        notifications.clear();
     }
 
     /**
@@ -605,8 +756,20 @@ public class WordleClientMain {
     private static void startConnection() {
         try {
             clientSocket = new Socket(HOSTNAME, PORT);
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
-            in = new Scanner(clientSocket.getInputStream());
+            if (PROTOCOL.equals("binary")) {
+                // richiedo al server il protocollo binario, che conferma rispondendo con gli stessi byte
+                binaryOut = clientSocket.getOutputStream();
+                binaryIn = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+                binaryOut.write(BinaryProtocol.MAGIC);
+                byte[] ack = new byte[BinaryProtocol.MAGIC.length];
+                binaryIn.readFully(ack);
+                if (!Arrays.equals(ack, BinaryProtocol.MAGIC)) {
+                    throw new IOException("il server non supporta il protocollo binario");
+                }
+            } else {
+                out = new PrintWriter(clientSocket.getOutputStream(), true);
+                in = new Scanner(clientSocket.getInputStream());
+            }
         } catch (IOException ex) {
             System.err.println("Errore nella connessione al server.");
             ex.printStackTrace();
@@ -621,8 +784,10 @@ public class WordleClientMain {
     private static void closeConnection() {
         try {
             clientSocket.close();
-            in.close();
-            out.close();
+            if (in != null) {
+                in.close();
+                out.close();
+            }
 
             // Tento la chiusura graceful del pool con il task che gestisce la comunicazione multicast
             try {
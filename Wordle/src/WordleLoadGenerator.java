@@ -0,0 +1,327 @@
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Leonardo Arditti 24/4/2023
+ */
+
+/**
+ * Generatore di carico senza interfaccia: apre molte sessioni concorrenti verso un server WORDLE già avviato e in ognuna
+ * esegue la sequenza di comandi di un giocatore, con lo stesso protocollo (testuale o binario) del client:
+ * REGISTER -> LOGIN -> PLAYWORDLE -> SENDWORD (parole casuali del vocabolario, fino a vittoria o sconfitta)
+ * -> SENDMESTATISTICS -> SHARE -> LOGOUT.
+ * Ogni sessione usa un utente nuovo e un proprio thread; le sessioni partono distribuite uniformemente nel tempo di ramp-up
+ * e tra un comando e il successivo attendono un tempo casuale (think time) compreso tra 0 e il doppio di quello indicato.
+ * Per ogni tipo di comando vengono misurati throughput, latenze (p50, p99, p999, massima, vedi LatencyHistogram) ed errori;
+ * i risultati sono scritti in JSON in modo da poter confrontare esecuzioni diverse. Parametri (tutti facoltativi, host, porte
+ * e protocollo hanno come default i valori di client.properties):
+ * - host=.. port=.. protocol=text|binary
+ * - sessions=1000              numero di sessioni
+ * - rampup=10000               ms entro cui vengono avviate tutte le sessioni
+ * - think=100                  think time medio in ms (0 per nessuna attesa)
+ * - words=src/words.txt        vocabolario da cui estrarre le guessed word
+ * - out=load-results.json      file dei risultati
+ * - prefix=load<timestamp>     prefisso degli username, da cambiare tra esecuzioni sullo stesso archivio utenti
+ */
+public class WordleLoadGenerator {
+
+    // Tipi di comando misurati, nell'ordine in cui vengono eseguiti da una sessione
+    private static final String[] COMMANDS = {"REGISTER", "LOGIN", "PLAYWORDLE", "SENDWORD", "SENDMESTATISTICS", "SHARE", "LOGOUT"};
+    private static final int REGISTER = 0, LOGIN = 1, PLAYWORDLE = 2, SENDWORD = 3, SENDMESTATISTICS = 4, SHARE = 5, LOGOUT = 6;
+
+    private static String HOST;
+    private static int PORT;
+    private static String PROTOCOL;
+    private static int SESSIONS = 1000;
+    private static long RAMPUP = 10000;
+    private static long THINK = 100;
+    private static String WORDS = "src/words.txt";
+    private static String OUT = "load-results.json";
+    private static String PREFIX = "load" + System.currentTimeMillis();
+
+    private static final LatencyHistogram[] latencies = new LatencyHistogram[COMMANDS.length];
+    private static final LongAdder[] errors = new LongAdder[COMMANDS.length];
+    private static final AtomicInteger failedSessions = new AtomicInteger(); // sessioni interrotte da un errore di comunicazione
+    private static final LongAdder wins = new LongAdder();
+    private static String[] words;
+
+    public static void main(String[] args) throws Exception {
+        WordleClientMain.readConfig();
+        HOST = WordleClientMain.HOSTNAME;
+        PORT = WordleClientMain.PORT;
+        PROTOCOL = WordleClientMain.PROTOCOL;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                System.err.println("Uso: java WordleLoadGenerator [host=..] [port=..] [protocol=..] [sessions=..] [rampup=..] [think=..] [words=..] [out=..] [prefix=..]");
+                System.exit(1);
+            }
+            String key = arg.substring(0, eq), value = arg.substring(eq + 1);
+            switch (key) {
+                case "host": HOST = value; break;
+                case "port": PORT = Integer.parseInt(value); break;
+                case "protocol": PROTOCOL = value; break;
+                case "sessions": SESSIONS = Integer.parseInt(value); break;
+                case "rampup": RAMPUP = Long.parseLong(value); break;
+                case "think": THINK = Long.parseLong(value); break;
+                case "words": WORDS = value; break;
+                case "out": OUT = value; break;
+                case "prefix": PREFIX = value; break;
+                default:
+                    System.err.println("Parametro sconosciuto: " + key);
+                    System.exit(1);
+            }
+        }
+        words = readWords(WORDS);
+        for (int i = 0; i < COMMANDS.length; i++) {
+            latencies[i] = new LatencyHistogram();
+            errors[i] = new LongAdder();
+        }
+
+        System.out.println("[DEBUG] Avvio di " + SESSIONS + " sessioni verso " + HOST + ":" + PORT + " (protocollo " + PROTOCOL
+                + ", ramp-up " + RAMPUP + " ms, think time " + THINK + " ms)");
+        CountDownLatch done = new CountDownLatch(SESSIONS);
+        long start = System.nanoTime();
+        for (int i = 0; i < SESSIONS; i++) {
+            long startAt = start + RAMPUP * 1_000_000L * i / SESSIONS;
+            String username = PREFIX + "_" + i;
+            Thread session = new Thread(() -> {
+                try {
+                    sleepUntil(startAt);
+                    runSession(username);
+                } catch (IOException ex) {
+                    failedSessions.incrementAndGet();
+                    System.err.println("[DEBUG] Sessione di " + username + " interrotta: " + ex);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }, "load-" + i);
+            session.setDaemon(true);
+            session.start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        printResults(elapsed);
+        writeResults(OUT, elapsed);
+        System.out.println("[DEBUG] Risultati scritti in " + OUT);
+    }
+
+    /**
+     * Metodo che esegue la sequenza di comandi di un giocatore su una nuova connessione
+     * @param username L'username (non ancora registrato) da usare nella sessione
+     * @throws IOException se la comunicazione con il server si interrompe
+     * @throws InterruptedException se il thread viene interrotto durante il think time
+     */
+    private static void runSession(String username) throws IOException, InterruptedException {
+        try (Connection connection = new Connection(HOST, PORT, PROTOCOL.equals("binary"))) {
+            String password = "pw";
+            expect(REGISTER, connection, "SUCCESS", Command.REGISTER, username, password);
+            think();
+            if (!expect(LOGIN, connection, "SUCCESS", Command.LOGIN, username, password)) {
+                return;
+            }
+            think();
+            boolean playing = expect(PLAYWORDLE, connection, "SUCCESS", Command.PLAYWORDLE);
+
+            boolean finished = false, won = false; // partita conclusa (e quindi da condividere) e vinta
+            while (playing) {
+                think();
+                String guess = words[ThreadLocalRandom.current().nextInt(words.length)];
+                String response = request(SENDWORD, connection, Command.SENDWORD, guess);
+                if (response.startsWith("WIN")) {
+                    finished = won = true;
+                    playing = false;
+                } else if (response.startsWith("LOSE")) {
+                    finished = true;
+                    playing = false;
+                } else if (!response.startsWith("CLUE") && !response.equals("NOT_IN_VOCABULARY")) { // MAX_ATTEMPTS, ALREADY_WON o una risposta inattesa
+                    errors[SENDWORD].increment();
+                    playing = false;
+                }
+            }
+            if (won) {
+                wins.increment();
+            }
+
+            think();
+            if (!request(SENDMESTATISTICS, connection, Command.SENDMESTATISTICS).startsWith("Partite giocate")) {
+                errors[SENDMESTATISTICS].increment();
+            }
+            if (finished) {
+                think();
+                expect(SHARE, connection, "SUCCESS", Command.SHARE);
+            }
+            think();
+            expect(LOGOUT, connection, "SUCCESS", Command.LOGOUT, username);
+        }
+    }
+
+    // Invia una richiesta misurandone la latenza, e conta un errore se la risposta è diversa da quella attesa
+    private static boolean expect(int type, Connection connection, String expected, int op, String... args) throws IOException {
+        if (!request(type, connection, op, args).equals(expected)) {
+            errors[type].increment();
+            return false;
+        }
+        return true;
+    }
+
+    // Invia una richiesta e ne registra la latenza (dall'invio alla ricezione completa della risposta)
+    private static String request(int type, Connection connection, int op, String... args) throws IOException {
+        long start = System.nanoTime();
+        String response = connection.send(op, args);
+        latencies[type].record(System.nanoTime() - start);
+        return response;
+    }
+
+    private static void think() throws InterruptedException {
+        if (THINK > 0) {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(2 * THINK + 1));
+        }
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException {
+        long delay = nanoTime - System.nanoTime();
+        if (delay > 0) {
+            Thread.sleep(delay / 1_000_000L, (int) (delay % 1_000_000L));
+        }
+    }
+
+    // Connessione di una sessione, con il protocollo testuale o binario (vedi WordleClientMain.sendRequest)
+    private static class Connection implements AutoCloseable {
+        private final Socket socket;
+        private final OutputStream out;
+        private final DataInputStream binaryIn; // null con il protocollo testuale
+        private final Scanner in; // null con il protocollo binario
+        private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+
+        Connection(String host, int port, boolean binary) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            if (binary) {
+                binaryIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                in = null;
+                out.write(BinaryProtocol.MAGIC);
+                byte[] ack = new byte[BinaryProtocol.MAGIC.length];
+                binaryIn.readFully(ack);
+                if (!Arrays.equals(ack, BinaryProtocol.MAGIC)) {
+                    socket.close();
+                    throw new IOException("il server non supporta il protocollo binario");
+                }
+            } else {
+                binaryIn = null;
+                in = new Scanner(socket.getInputStream(), "UTF-8");
+            }
+        }
+
+        String send(int op, String... args) throws IOException {
+            frame.reset();
+            if (binaryIn != null) {
+                BinaryProtocol.encodeRequest(frame, op, args);
+                frame.writeTo(out);
+                out.flush();
+                return BinaryProtocol.readReplyAsText(binaryIn);
+            }
+            StringBuilder request = new StringBuilder(CommandParser.opName(op));
+            for (String arg : args) {
+                request.append(',').append(arg);
+            }
+            request.append('\n');
+            out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            if (!in.hasNextLine()) {
+                throw new IOException("connessione chiusa dal server");
+            }
+            return in.nextLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static void printResults(long elapsed) {
+        double seconds = elapsed / 1e9;
+        System.out.printf("Durata %.1f s, %d sessioni (%d interrotte), %d vittorie%n", seconds, SESSIONS, failedSessions.get(), wins.sum());
+        System.out.printf("%-18s %10s %10s %8s %10s %10s %10s %10s%n", "comando", "richieste", "req/s", "errori", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        for (int i = 0; i < COMMANDS.length; i++) {
+            LatencyHistogram h = latencies[i];
+            System.out.printf("%-18s %10d %10.1f %8d %10.3f %10.3f %10.3f %10.3f%n", COMMANDS[i], h.getCount(), h.getCount() / seconds,
+                    errors[i].sum(), h.percentile(0.5) / 1e6, h.percentile(0.99) / 1e6, h.percentile(0.999) / 1e6, h.percentile(1.0) / 1e6);
+        }
+    }
+
+    // Scrive la configurazione dell'esecuzione e, per ogni comando, throughput, errori e latenze in ms
+    private static void writeResults(String file, long elapsed) throws IOException {
+        double seconds = elapsed / 1e9;
+        try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writer.setIndent("  ");
+            writer.beginObject();
+            writer.name("config").beginObject();
+            writer.name("host").value(HOST);
+            writer.name("port").value(PORT);
+            writer.name("protocol").value(PROTOCOL);
+            writer.name("sessions").value(SESSIONS);
+            writer.name("rampupMs").value(RAMPUP);
+            writer.name("thinkMs").value(THINK);
+            writer.endObject();
+            writer.name("durationMs").value(elapsed / 1_000_000L);
+            writer.name("failedSessions").value(failedSessions.get());
+            writer.name("wins").value(wins.sum());
+            writer.name("commands").beginArray();
+            for (int i = 0; i < COMMANDS.length; i++) {
+                LatencyHistogram h = latencies[i];
+                writer.beginObject();
+                writer.name("command").value(COMMANDS[i]);
+                writer.name("count").value(h.getCount());
+                writer.name("errors").value(errors[i].sum());
+                writer.name("throughput").value(h.getCount() / seconds);
+                writer.name("meanMs").value(h.getMean() / 1e6);
+                writer.name("p50Ms").value(h.percentile(0.5) / 1e6);
+                writer.name("p99Ms").value(h.percentile(0.99) / 1e6);
+                writer.name("p999Ms").value(h.percentile(0.999) / 1e6);
+                writer.name("maxMs").value(h.percentile(1.0) / 1e6);
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+    }
+
+    private static String[] readWords(String file) throws IOException {
+        List<String> list = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    list.add(line);
+                }
+            }
+        }
+        return list.toArray(new String[0]);
+    }
+}
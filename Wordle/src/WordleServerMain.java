@@ -1,30 +1,35 @@
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import com.google.gson.stream.JsonReader;
-import com.google.gson.stream.JsonWriter;
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
 import java.net.SocketException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Random;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -33,26 +38,58 @@ import java.util.concurrent.TimeUnit;
  */
 public class WordleServerMain {
 
-    private static int connectedUsers = 0; // per scopi di stampa sulla CLI
-
     // Percorso del file di configurazione del server
     public static final String CONFIG = "src/server.properties";
 
     public static int PORT; // // Porta del server 
-    public static int SERVER_NOTIFICATION_PORT; // Porta usata per la comunicazione UDP tra client e server al fine di condividere i risultati di una partita
     public static String VOCABULARY; // Nome del file contenente il vocabolario del gioco
+    public static String VOCABULARY_INDEX; // Nome del file indice del vocabolario (vedi Vocabulary), se vuoto il vocabolario viene letto in memoria da VOCABULARY
     public static int TIMEOUT;
     public static String USER_DB; // Nome del file che contiene le informazioni degli utenti in formato JSON
+    public static String USER_STORE_FORMAT; // Formato dei file degli utenti: "json" o "binary" (vedi UserStore)
+    public static int USER_SHARDS; // Numero di file (shard) in cui sono suddivisi gli utenti, in base all'hash dell'username
+    public static String USER_JOURNAL; // Nome del file del journal delle modifiche agli utenti successive all'ultimo snapshot USER_DB
+    public static long JOURNAL_COMPACT_SIZE; // Dimensione in byte del journal oltre la quale viene scritto un nuovo snapshot in background
+    public static int SNAPSHOT_INTERVAL; // Periodo in secondi tra uno snapshot degli utenti e il successivo
+    public static int SNAPSHOT_MAX_DELTAS; // Numero di snapshot incrementali dopo il quale viene scritto uno snapshot completo
+    public static String WORD_STATE; // Nome del file in cui è salvato lo stato delle estrazioni della secret word
     public static int WORD_UPDATE_DELAY; // Periodo di tempo che intercorre tra la pubblicazione di una parola segreta e la successiva
+    public static int CLUE_CACHE_SIZE; // Numero massimo di guessed word di cui il turno corrente memorizza gli indizi (0 per disabilitare la cache)
     public static String MULTICAST_GROUP_ADDRESS; // Identifica un indirizzo di classe D
     public static int MULTICAST_GROUP_PORT; // Porta usata nel MulticastSocket
-
-    private static String secretWord; // Parola segreta che gli utenti devono indovinare
+    public static int SHARE_BUFFERS; // Numero massimo di notifiche ricevute in attesa di essere inoltrate, oltre il quale vengono scartate
+    public static int SHARE_MAX_DATAGRAM; // Dimensione massima in byte di una notifica e di un datagram inviato al gruppo multicast
+    public static int SHARE_COALESCE_MS; // Finestra in ms entro cui le notifiche ricevute vengono raggruppate in un unico datagram
+    public static boolean SHARE_MULTICAST; // Se false le notifiche vengono inviate solo ai client iscritti con SUBSCRIBE, non al gruppo multicast
+    public static int PUSH_QUEUE_SIZE; // Numero massimo di notifiche in coda per un client iscritto, oltre il quale vengono scartate le più vecchie
+    public static int PUSH_FLUSH_MS; // Periodo in ms con cui un thread di connessione invia le notifiche accodate (modalità threads e virtual)
+    public static int SHARE_LOG_SIZE; // Numero di risultati condivisi nel turno che il server mantiene per SHOWMESHARING (vedi ShareLog)
+    public static String SERVER_MODE; // Modalità di gestione dei client: "threads" (un thread per connessione), "virtual" (un virtual thread per connessione) o "nio" (selector non bloccante)
+    public static int NIO_REACTORS; // Numero di thread reactor (ognuno con il proprio Selector) usati in modalità nio
+    public static boolean LOG_COMMANDS; // Se true viene registrato nel log ogni comando ricevuto dai client
+    public static String LOG_FILE; // File in cui vengono scritti in modo asincrono connessioni, comandi e notifiche dei client (vedi ServerLog)
+    public static int LOG_BUFFER_SIZE; // Numero massimo di eventi di log in attesa di essere scritti, oltre il quale vengono scartati
+    public static int LOG_SAMPLE_INFO; // Registra un evento INFO (connessioni) ogni LOG_SAMPLE_INFO, 0 per nessuno
+    public static int LOG_SAMPLE_DEBUG; // Registra un evento DEBUG (comandi, notifiche) ogni LOG_SAMPLE_DEBUG, 0 per nessuno
+    public static int ADMIN_PORT; // Porta (solo su loopback) dell'endpoint HTTP che espone le metriche del server, 0 per disabilitarlo
+
+    private static ShareRelay shareRelay; // Relay a cui vengono accodati i risultati condivisi, null se non è stato possibile avviarla
+    private static volatile Round currentRound; // Turno corrente: parola segreta che gli utenti devono indovinare ed epoch del turno
+    private static long lastEpoch; // Epoch dell'ultimo turno pubblicato (salvato insieme allo stato delle estrazioni)
 
     /* Strutture dati:*/
     private static ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>(); // Mappa che mantiene le associazioni username<->utenti
-    private static List<String> wordList = new ArrayList<>(); // Lista che conterrà la parole (ordinate per ipotesi) del vocabolario 
-    private static Set<String> extractedWords = new HashSet<>(); // Insieme di parole estratte in precedenza, in modo da non estrarle nuovamente
+    private static UserJournal journal; // Journal su cui vengono registrate le modifiche agli utenti
+    private static final Queue<User> dirtyUsers = new ConcurrentLinkedQueue<>(); // Utenti modificati dall'ultimo snapshot (vedi User.setDirty)
+    private static final String DELTA_SUFFIX = ".delta."; // Suffisso degli snapshot incrementali, seguito dal loro numero progressivo
+    private static final String SHARD_SUFFIX = ".shard."; // Suffisso dei file degli shard, seguito dal numero dello shard
+    private static final int ESTIMATED_USER_BYTES = 150; // Stima per difetto dei byte occupati da un utente negli shard, usata per dimensionare la mappa degli utenti
+    private static final ForkJoinPool storePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors()); // Pool usato per leggere e scrivere gli shard in parallelo
+    private static int deltaCount = 0; // Numero di snapshot incrementali scritti dall'ultimo snapshot completo
+    private static Vocabulary vocabulary; // Parole del vocabolario codificate con PackedWord, ordinate (sullo heap o mappate dal file indice)
+    private static int[] drawOrder; // Permutazione delle posizioni del vocabolario: ordine in cui vengono estratte le parole
+    private static long drawSeed; // Seme da cui è generata la permutazione
+    private static int drawCursor; // Numero di parole della permutazione già estratte
 
     /**
      * Metodo che legge il file di configurazione del server
@@ -65,13 +102,36 @@ public class WordleServerMain {
             Properties prop = new Properties();
             prop.load(input);
             PORT = Integer.parseInt(prop.getProperty("PORT"));
-            SERVER_NOTIFICATION_PORT = Integer.parseInt(prop.getProperty("SERVER_NOTIFICATION_PORT"));
             VOCABULARY = prop.getProperty("VOCABULARY");
+            VOCABULARY_INDEX = prop.getProperty("VOCABULARY_INDEX", "");
             TIMEOUT = Integer.parseInt(prop.getProperty("TIMEOUT"));
             USER_DB = prop.getProperty("USER_DB");
+            USER_STORE_FORMAT = prop.getProperty("USER_STORE_FORMAT", "json");
+            USER_SHARDS = Integer.parseInt(prop.getProperty("USER_SHARDS", "4"));
+            USER_JOURNAL = prop.getProperty("USER_JOURNAL", "src/users.journal");
+            JOURNAL_COMPACT_SIZE = Long.parseLong(prop.getProperty("JOURNAL_COMPACT_SIZE", "1048576"));
+            SNAPSHOT_INTERVAL = Integer.parseInt(prop.getProperty("SNAPSHOT_INTERVAL", "60"));
+            SNAPSHOT_MAX_DELTAS = Integer.parseInt(prop.getProperty("SNAPSHOT_MAX_DELTAS", "8"));
+            WORD_STATE = prop.getProperty("WORD_STATE", "src/word_state.properties");
             WORD_UPDATE_DELAY = Integer.parseInt(prop.getProperty("WORD_UPDATE_DELAY"));
+            CLUE_CACHE_SIZE = Integer.parseInt(prop.getProperty("CLUE_CACHE_SIZE", "4096"));
             MULTICAST_GROUP_ADDRESS = prop.getProperty("MULTICAST_GROUP_ADDRESS");
             MULTICAST_GROUP_PORT = Integer.parseInt(prop.getProperty("MULTICAST_GROUP_PORT"));
+            SHARE_BUFFERS = Integer.parseInt(prop.getProperty("SHARE_BUFFERS", "1024"));
+            SHARE_MAX_DATAGRAM = Integer.parseInt(prop.getProperty("SHARE_MAX_DATAGRAM", "8192"));
+            SHARE_COALESCE_MS = Integer.parseInt(prop.getProperty("SHARE_COALESCE_MS", "5"));
+            SHARE_MULTICAST = Boolean.parseBoolean(prop.getProperty("SHARE_MULTICAST", "true"));
+            PUSH_QUEUE_SIZE = Integer.parseInt(prop.getProperty("PUSH_QUEUE_SIZE", "64"));
+            PUSH_FLUSH_MS = Integer.parseInt(prop.getProperty("PUSH_FLUSH_MS", "50"));
+            SHARE_LOG_SIZE = Integer.parseInt(prop.getProperty("SHARE_LOG_SIZE", "1024"));
+            SERVER_MODE = prop.getProperty("SERVER_MODE", "threads");
+            NIO_REACTORS = Integer.parseInt(prop.getProperty("NIO_REACTORS", "1"));
+            LOG_COMMANDS = Boolean.parseBoolean(prop.getProperty("LOG_COMMANDS", "true"));
+            LOG_FILE = prop.getProperty("LOG_FILE", "src/server.log");
+            LOG_BUFFER_SIZE = Integer.parseInt(prop.getProperty("LOG_BUFFER_SIZE", "65536"));
+            LOG_SAMPLE_INFO = Integer.parseInt(prop.getProperty("LOG_SAMPLE_INFO", "1"));
+            LOG_SAMPLE_DEBUG = Integer.parseInt(prop.getProperty("LOG_SAMPLE_DEBUG", "1"));
+            ADMIN_PORT = Integer.parseInt(prop.getProperty("ADMIN_PORT", "9090"));
         } catch (IOException ex) {
             System.err.println("Errore durante la lettura del file di configurazione.");
             ex.printStackTrace();
@@ -79,31 +139,64 @@ public class WordleServerMain {
     }
     
     /**
-     * Metodo che si occupa di ricevere da parte dei client gli esiti delle partite per poi invarli sul gruppo di multicast. 
+     * Metodo che avvia la relay che invia i risultati condivisi dai client (comando SHARE) sul gruppo di multicast
+     * (se SHARE_MULTICAST) e ai client iscritti con SUBSCRIBE.
+     * L'invio avviene su un thread dedicato (vedi ShareRelay), eseguito dal pool.
+     * @param pool Il pool che esegue il thread di invio della relay
+     * @return     La relay avviata, o null se non è stato possibile avviarla
      */
-    public static void handleSharing() {
-        // Creo una DatagramSocket per l'invio dei pacchetti.
-        try (DatagramSocket ds = new DatagramSocket(SERVER_NOTIFICATION_PORT);
-             MulticastSocket ms = new MulticastSocket(MULTICAST_GROUP_PORT);) {
-            // Ottengo l'indirizzo del gruppo e ne controllo la validita'.
-            InetAddress group = InetAddress.getByName(MULTICAST_GROUP_ADDRESS);
-            if (!group.isMulticastAddress()) {
-                throw new IllegalArgumentException("Indirizzo multicast non valido: " + group.getHostAddress());
-            }
-            ms.joinGroup(group);
-            System.out.println("[DEBUG] Server unito al gruppo Multicast con IP " + MULTICAST_GROUP_ADDRESS);
-            while (true) { 
-                // ricevo datagramma UDP dal client che vuole condividere i propri risultati
-                DatagramPacket request = new DatagramPacket(new byte[8192], 8192);
-                ds.receive(request);
-
-                // mando al gruppo multicast un datagramma UDP contenente la notifica con i risultati ricevuti dal client  
-                DatagramPacket response = new DatagramPacket(request.getData(), request.getLength(), group, MULTICAST_GROUP_PORT);
-                ms.send(response);
-                System.out.println("[DEBUG] Mandata dal server una notifica al gruppo multicast.");
+    public static ShareRelay handleSharing(ExecutorService pool) {
+        try {
+            ShareRelay relay = new ShareRelay(SHARE_MULTICAST ? MULTICAST_GROUP_ADDRESS : null, MULTICAST_GROUP_PORT, SHARE_BUFFERS, SHARE_MAX_DATAGRAM, SHARE_COALESCE_MS);
+            pool.execute(relay::sendLoop);
+            System.out.println("[DEBUG] Notifiche dei client inoltrate " + (SHARE_MULTICAST ? "al gruppo multicast " + MULTICAST_GROUP_ADDRESS + " e " : "")
+                    + "ai client iscritti (coda di " + PUSH_QUEUE_SIZE + " notifiche per client).");
+            return relay;
+        } catch (IOException ex) {
+            System.err.println("Errore server: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Metodo che gestisce l'endpoint di amministrazione: un server HTTP minimale, raggiungibile solo dalla macchina locale,
+     * che a ogni richiesta (qualunque sia il percorso) risponde con le metriche del server in formato testuale (vedi ServerMetrics),
+     * e.g: curl http://127.0.0.1:9090/metrics
+     */
+    public static void handleAdmin() {
+        try (ServerSocket adminSocket = new ServerSocket(ADMIN_PORT, 16, InetAddress.getLoopbackAddress())) {
+            System.out.println("[DEBUG] Endpoint di amministrazione attivo su http://127.0.0.1:" + ADMIN_PORT + "/metrics");
+            while (true) {
+                Socket socket = adminSocket.accept();
+                try (OutputStream out = socket.getOutputStream()) { // la chiusura dello stream chiude anche la socket
+                    socket.setSoTimeout(TIMEOUT);
+                    // leggo la richiesta fino alla riga vuota che chiude gli header, il cui contenuto non è rilevante
+                    InputStream in = socket.getInputStream();
+                    int c, lineLength = 0;
+                    while ((c = in.read()) != -1) {
+                        if (c == '\n') {
+                            if (lineLength == 0) {
+                                break;
+                            }
+                            lineLength = 0;
+                        } else if (c != '\r') {
+                            lineLength++;
+                        }
+                    }
+
+                    byte[] body = ServerMetrics.scrape().getBytes(StandardCharsets.UTF_8);
+                    out.write(("HTTP/1.0 200 OK\r\n"
+                            + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                            + "Content-Length: " + body.length + "\r\n"
+                            + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    out.write(body);
+                    out.flush();
+                } catch (IOException ex) { // errore sulla singola richiesta, l'endpoint continua a rispondere alle successive
+                    System.err.println("Errore nella risposta a una richiesta dell'endpoint di amministrazione: " + ex.getMessage());
+                }
             }
-        } catch (Exception e) {
-            System.err.println("Errore server: " + e.getMessage());
+        } catch (IOException ex) {
+            System.err.println("Errore server: " + ex.getMessage());
         }
     }
 
@@ -113,64 +206,153 @@ public class WordleServerMain {
      * @return      True se la parola apparteiene al vocabolario, false altrimenti
      */
     public static boolean isInVocabulary(String guess) {
-        // Sfrutto l'ordinamento del vocabolario e quindi che la lista di parole è anch'essa ordinata, dato che mantiene l'ordine di inserimento (se non ci fosse l'ipotesi sull'ordinamento del vocabolario basterebbe fare prima Collections.sort(wordList))
-        int index = Collections.binarySearch(wordList, guess);
+        return isInVocabulary(PackedWord.encode(guess));
+    }
 
-        if (index >= 0) // parola trovata 
-            return true;
-        else // parola non trovata
-            return false; 
+    /**
+     * Metodo che verifica se una guess, letta direttamente dal buffer di un comando, è presente all'interno del vocabolario di parole.
+     * @param guess  Il buffer che contiene la parola di cui bisogna verificare l'appartenenza al vocabolario
+     * @param from   La posizione di inizio della parola nel buffer
+     * @param length La lunghezza della parola
+     * @return       True se la parola appartiene al vocabolario, false altrimenti
+     */
+    public static boolean isInVocabulary(byte[] guess, int from, int length) {
+        return isInVocabulary(PackedWord.encode(guess, from, length));
+    }
+
+    /**
+     * Metodo che verifica se una guess già codificata (vedi PackedWord) è presente all'interno del vocabolario di parole
+     * @param guess La parola codificata
+     * @return      True se la parola appartiene al vocabolario, false altrimenti
+     */
+    public static boolean isInVocabulary(long guess) {
+        return vocabulary.contains(guess);
     }
 
     /**
-     * Metodo che restituisce l'ultima parola segreta estratta dal server
-     * @return L'ultima parola segreta del gioco che è stata estratta
+     * Metodo che restituisce il turno corrente, cioè l'ultima parola segreta estratta dal server e l'epoch del turno
+     * @return Il turno corrente
      */
-    public static String getSecretWord() {
-        return secretWord;
+    public static Round getCurrentRound() {
+        return currentRound;
     }
 
     /**
      * Metodo che va a individuare una nuova parola da indovinare per gli utenti tra quelle che non sono già state estratte precedentemente.
+     * Le parole vengono estratte seguendo una permutazione casuale del vocabolario (determinata da drawSeed), per cui ogni estrazione
+     * costa O(1) indipendentemente da quante parole sono già state usate; seme e posizione raggiunta sono salvati in WORD_STATE
+     * in modo che le parole non si ripetano anche dopo un riavvio del server.
+     * Ogni nuova parola apre un nuovo turno con epoch incrementato: un utente può giocare se l'ultimo turno a cui ha partecipato
+     * è precedente, per cui cambiare parola non richiede di aggiornare gli utenti (costo O(1) indipendentemente dal loro numero).
      * Questo metodo verrà invocato periodicamente da un task sottomesso a uno Scheduled Thread Pool.
      */
     public static void pickNewWord() {
-        Random rand = new Random();
-        int index = rand.nextInt(wordList.size()); // genera un numero casuale nell'intervallo [0,dimensione vocabolario - 1]
-
-        String random_word = wordList.get(index); // estrai la parola del vocabolario che si trova nella posizione identificata dal numero casuale generato
-        while (extractedWords.contains(random_word)) { // fino a quando la parola estratta è una parola che è stata già estratta precedentemente (cioè già usata nel gioco)..
-            index = rand.nextInt(wordList.size()); //..continua a generare numeri casuali..
-            random_word = wordList.get(index);//..andando a estrarre la parola nella posizione data dal numero casuale
+        if (drawCursor == drawOrder.length) { // tutte le parole del vocabolario sono state usate, ricomincio con una nuova permutazione
+            System.out.println("[DEBUG] Estratte tutte le parole del vocabolario, inizio un nuovo ciclo di estrazioni.");
+            newDrawOrder(new Random().nextLong());
+        }
+        long random_word = vocabulary.get(drawOrder[drawCursor++]); // estrai la prossima parola della permutazione
+        lastEpoch++;
+        saveWordState(); // salvo la posizione raggiunta e l'epoch prima di pubblicare la parola
+
+        Round previous = currentRound;
+        currentRound = new Round(lastEpoch, random_word, CLUE_CACHE_SIZE, SHARE_LOG_SIZE); // pubblico il nuovo turno, con una cache degli indizi e un log delle condivisioni vuoti
+        if (previous != null) {
+            ClueCache clues = previous.getClueCache();
+            System.out.println("[DEBUG] Turno " + previous.getEpoch() + ": " + previous.getGamesWon() + " partite vinte, " + previous.getGamesLost() + " perse; "
+                    + "cache degli indizi: " + clues.getHits() + " hit, " + clues.getMisses() + " miss.");
         }
+        System.out.println("[DEBUG] Nuova parola proposta: " + currentRound.getSecretWord() + " (turno " + lastEpoch + "), pubblicazione prossima parola in " + WORD_UPDATE_DELAY + " minuti.");
+    }
 
-        // aggiungo la parola all'insieme della parole da non estrarre successivamente
-        extractedWords.add(random_word);
+    // Calcola la permutazione delle posizioni del vocabolario determinata dal seme (Fisher-Yates) e riparte dalla prima posizione
+    private static void newDrawOrder(long seed) {
+        drawSeed = seed;
+        drawCursor = 0;
+        drawOrder = new int[vocabulary.size()];
+        for (int i = 0; i < drawOrder.length; i++) {
+            drawOrder[i] = i;
+        }
+        Random rand = new Random(seed);
+        for (int i = drawOrder.length - 1; i > 0; i--) {
+            int j = rand.nextInt(i + 1);
+            int tmp = drawOrder[i];
+            drawOrder[i] = drawOrder[j];
+            drawOrder[j] = tmp;
+        }
+    }
 
-        // Una volta individuata la nuova parola, aggiorno lo stato degli utenti per specificare che possono giocare
-        for (Entry<String, User> entry : users.entrySet()) {
-            User user = entry.getValue();
+    /**
+     * Metodo che ripristina lo stato delle estrazioni (seme della permutazione, parole già estratte ed epoch dell'ultimo turno) salvato in WORD_STATE.
+     * Se il file non esiste, o il vocabolario ha cambiato dimensione, si inizia una nuova permutazione.
+     */
+    public static void loadWordState() {
+        Properties state = new Properties();
+        File file = new File(WORD_STATE);
+        if (file.exists()) {
+            try (InputStream input = new FileInputStream(file)) {
+                state.load(input);
+            } catch (IOException ex) {
+                System.err.println("Errore durante la lettura dello stato delle estrazioni dal file " + WORD_STATE);
+                ex.printStackTrace();
+            }
+        }
 
-            user.setHas_not_played(); // imposto has_played = false per tutti gli utenti
-            updateUser(user); // rimpiazzo gli utenti nella mappa
+        lastEpoch = Long.parseLong(state.getProperty("EPOCH", "0"));
+        String seed = state.getProperty("SEED");
+        int size = Integer.parseInt(state.getProperty("VOCABULARY_SIZE", "-1"));
+        if (seed == null || size != vocabulary.size()) {
+            if (seed != null) {
+                System.out.println("[DEBUG] Il vocabolario è cambiato (" + size + " -> " + vocabulary.size() + " parole), inizio un nuovo ciclo di estrazioni.");
+            }
+            newDrawOrder(new Random().nextLong());
+        } else {
+            newDrawOrder(Long.parseLong(seed));
+            drawCursor = Math.min(Integer.parseInt(state.getProperty("CURSOR", "0")), drawOrder.length);
+            System.out.println("[DEBUG] Ripristinato lo stato delle estrazioni: " + drawCursor + " parole già estratte.");
         }
+    }
 
-        secretWord = random_word; // aggiorno la parola segreta con quella appena estratta
-        System.out.println("[DEBUG] Nuova parola proposta: " + secretWord + ", pubblicazione prossima parola in " + WORD_UPDATE_DELAY + " minuti.");
+    /**
+     * Metodo che salva lo stato delle estrazioni in WORD_STATE (scrivendo su un file temporaneo poi rinominato, per non lasciare mai un file incompleto)
+     */
+    public static void saveWordState() {
+        Properties state = new Properties();
+        state.setProperty("SEED", Long.toString(drawSeed));
+        state.setProperty("CURSOR", Integer.toString(drawCursor));
+        state.setProperty("VOCABULARY_SIZE", Integer.toString(drawOrder.length));
+        state.setProperty("EPOCH", Long.toString(lastEpoch));
+
+        File tmp = new File(WORD_STATE + ".tmp");
+        try (OutputStream output = new FileOutputStream(tmp)) {
+            state.store(output, "Stato delle estrazioni della secret word");
+        } catch (IOException ex) {
+            System.err.println("Errore durante il salvataggio dello stato delle estrazioni nel file " + WORD_STATE);
+            ex.printStackTrace();
+            return;
+        }
+        File file = new File(WORD_STATE);
+        if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+            System.err.println("Errore durante il salvataggio dello stato delle estrazioni nel file " + WORD_STATE);
+        }
     }
 
     /**
-     * Metodo che va a leggere e memorizzare il vocabolario di parole del gioco
+     * Metodo che va a leggere e memorizzare il vocabolario di parole del gioco.
+     * Se è configurato VOCABULARY_INDEX il vocabolario viene mappato in memoria dal file indice, che viene (ri)compilato
+     * a partire da VOCABULARY solo se non esiste o è meno recente del vocabolario testuale.
      */
     public static void loadVocabulary() {
-        int num_words = 0;
-        try (BufferedReader br = new BufferedReader(new FileReader(VOCABULARY))) {
-            String line = "";
-
-            while (line != null) { // fino a quando non sono state lette tutte le righe del file (per ipotesi dal vocabolario fornito si ha che 1 riga = 1 parola)
-                line = br.readLine();
-                wordList.add(line); // aggiungi la parola letta alla lista delle parole del vocabolario
-                num_words++;
+        try {
+            if (VOCABULARY_INDEX == null || VOCABULARY_INDEX.isEmpty()) {
+                vocabulary = Vocabulary.load(VOCABULARY);
+            } else {
+                File index = new File(VOCABULARY_INDEX);
+                if (!index.exists() || index.lastModified() < new File(VOCABULARY).lastModified()) {
+                    System.out.println("[DEBUG] Compilazione dell'indice " + VOCABULARY_INDEX + " dal vocabolario " + VOCABULARY);
+                    Vocabulary.compile(VOCABULARY, VOCABULARY_INDEX);
+                }
+                vocabulary = Vocabulary.map(VOCABULARY_INDEX);
             }
         } catch (FileNotFoundException ex) {
             System.err.println("Errore, file " + VOCABULARY + " non trovato, riprovare.");
@@ -180,125 +362,372 @@ public class WordleServerMain {
             ex.printStackTrace();
         }
 
-        System.out.println("[DEBUG] Caricate con successo " + num_words + " parole nel vocabolario.");
+        System.out.println("[DEBUG] Caricate con successo " + (vocabulary == null ? 0 : vocabulary.size()) + " parole nel vocabolario.");
     }
 
     /**
-     * Metodo che va a caricare il file JSON contenente le informazioni degli utenti.
-     * Si usa la GSON Streaming API perchè l'oggetto da caricare potrebbe essere grande e in questo modo si sfrutta
-     * il caricamento parziale dell'oggetto.
+     * Metodo che va a caricare i file JSON contenenti le informazioni degli utenti (snapshot completo, suddiviso in USER_SHARDS shard)
+     * e, a seguire, gli snapshot incrementali scritti successivamente (vedi saveDirtyUsers).
+     * Gli shard vengono letti in parallelo su un ForkJoinPool e inseriti direttamente nella mappa users, creata già della dimensione stimata.
+     * Se non esiste alcuno shard ma esiste il file USER_DB (formato precedente, un unico array JSON) gli utenti vengono letti da
+     * quest'ultimo e subito suddivisi negli shard; il file originale viene rinominato con suffisso ".migrated".
+     * Lo stesso avviene se gli shard presenti sono in numero diverso da USER_SHARDS (configurazione modificata).
      */
     public static void loadUsersFromJSON() {
-        try (JsonReader reader = new JsonReader(new FileReader(USER_DB))) {
-            int total_users = 0; // utenti nel file, usato a scopo di stampa su CLI
-            reader.beginArray(); // [
-            while (reader.hasNext()) { // l'array ha altri elementi?
-                
-                // Variabili che vengono usate nella creazione di un oggetto di tipo User
-                String username = "", password = "";
-                int total_games_played = 0, total_games_won = 0, current_winstreak = 0, longest_winstreak = 0;
-                boolean has_played = false;
-                ArrayList<Integer> guess_distribution = new ArrayList<>();
-
-                reader.beginObject(); // {
-                while (reader.hasNext()) { // leggo i vari campi dell'oggetto JSON
-                    String key = reader.nextName();
-                    if ("username".equals(key)) {
-                        username = reader.nextString();
-                    } else if ("password".equals(key)) {
-                        password = reader.nextString();
-                    } else if ("total_played_games".equals(key)) {
-                        total_games_played = reader.nextInt();
-                    } else if ("total_games_won".equals(key)) {
-                        total_games_won = reader.nextInt();
-                    } else if ("current_winstreak".equals(key)) {
-                        current_winstreak = reader.nextInt();
-                    } else if ("longest_winstreak".equals(key)) {
-                        longest_winstreak = reader.nextInt();
-                    } else if ("has_played".equals(key)) {
-                        has_played = reader.nextBoolean();
-                    } else if ("guess_distribution".equals(key)) {
-                        reader.beginArray(); // [
-                        while (reader.hasNext()) {
-                            int guess_attempt = reader.nextInt();
-                            guess_distribution.add(guess_attempt);
-                        }
-                        reader.endArray(); // ]
+        long start = System.nanoTime();
+        List<File> shards = listShards();
+        File legacy = new File(USER_DB);
+        boolean migrate = shards.isEmpty() && legacy.exists();
+        if (migrate) {
+            shards.add(legacy);
+        }
+
+        long bytes = 0;
+        for (File shard : shards) {
+            bytes += shard.length();
+        }
+        // stima del numero di utenti (ESTIMATED_USER_BYTES per utente), per non dover ridimensionare la mappa durante il caricamento
+        users = new ConcurrentHashMap<>((int) Math.min(Integer.MAX_VALUE, Math.max(16, bytes / ESTIMATED_USER_BYTES)));
+
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (File shard : shards) {
+            tasks.add(() -> readUsersFile(shard));
+        }
+        try {
+            for (Future<Integer> loaded : storePool.invokeAll(tasks)) {
+                loaded.get();
+            }
+        } catch (InterruptedException | ExecutionException ex) {
+            System.err.println("Errore durante il caricamento degli utenti.");
+            ex.printStackTrace();
+        }
+        System.out.println("[DEBUG] Caricati " + users.size() + " utenti da " + shards.size() + " file in " + (System.nanoTime() - start) / 1000000 + " ms.");
+
+        for (File delta : listDeltas()) {
+            readUsersFile(delta);
+            deltaCount++;
+        }
+
+        if (migrate || (!shards.isEmpty() && shards.size() != USER_SHARDS)) {
+            System.out.println("[DEBUG] Suddivisione degli utenti in " + USER_SHARDS + " shard.");
+            if (saveUsersToJSON()) {
+                for (File shard : listShards()) { // shard in eccesso rispetto a USER_SHARDS
+                    if (shardOf(shard) < 0) {
+                        shard.delete();
                     }
                 }
-                reader.endObject(); // }
-                total_users++;
-                
-                // Creo l'oggetto User corrispondente alle informazioni lette da file e lo aggiungo alla struttura users che memorizza gli utenti
-                User user = new User(username, password, total_games_played, total_games_won, current_winstreak, longest_winstreak, has_played, guess_distribution);
-                users.put(username, user); 
+                if (migrate && !legacy.renameTo(new File(USER_DB + ".migrated"))) {
+                    System.err.println("Impossibile rinominare il file " + USER_DB + " dopo la migrazione.");
+                }
             }
-            reader.endArray(); // }
-            System.out.println("[DEBUG] file " + USER_DB + " caricato con successo. (" + total_users + " utenti)");
-            // Stampa mappa per debug
-            // users.forEach((k,v)-> System.out.println("key: "+k+", value: "+v));
+        }
+    }
+
+    // Restituisce il file dello shard i-esimo
+    private static File shardFile(int i) {
+        return new File(USER_DB + SHARD_SUFFIX + i);
+    }
+
+    // Restituisce l'indice dello shard a partire dal nome del file (e.g: users.json.shard.3 -> 3), o -1 se eccede USER_SHARDS
+    private static int shardOf(File shard) {
+        int i = Integer.parseInt(shard.getName().substring(shard.getName().lastIndexOf('.') + 1));
+        return i < USER_SHARDS ? i : -1;
+    }
+
+    // Restituisce lo shard in cui è memorizzato un utente
+    private static int shardOf(String username) {
+        return Math.floorMod(username.hashCode(), USER_SHARDS); // String.hashCode è definito dalla specifica, per cui è stabile tra un'esecuzione e l'altra
+    }
+
+    // Restituisce i file degli shard presenti (anche oltre USER_SHARDS, se in precedenza ne era configurato un numero maggiore)
+    private static List<File> listShards() {
+        List<File> shards = new ArrayList<>();
+        File dir = new File(USER_DB).getAbsoluteFile().getParentFile();
+        String prefix = new File(USER_DB).getName() + SHARD_SUFFIX;
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix) && name.substring(prefix.length()).matches("[0-9]+")) {
+                    shards.add(new File(new File(USER_DB).getParentFile(), name));
+                }
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * Metodo che legge un file di utenti (JSON o binario, vedi UserStore) e li aggiunge alla struttura users.
+     * Un utente già presente viene sostituito solo se il file ne contiene una versione più recente (journal_seq maggiore).
+     * @param file Il file da leggere
+     * @return     Il numero di utenti letti
+     */
+    private static int readUsersFile(File file) {
+        long start = System.nanoTime();
+        try {
+            int total_users = UserStore.read(file, user -> {
+                User previous = users.get(user.getUsername());
+                if (previous == null || previous.getJournal_seq() < user.getJournal_seq()) {
+                    users.put(user.getUsername(), user);
+                }
+            });
+            System.out.println("[DEBUG] file " + file + " caricato con successo. (" + total_users + " utenti in " + (System.nanoTime() - start) / 1000000 + " ms)");
+            return total_users;
         } catch (FileNotFoundException ex) {
-            System.err.println("Errore, file '" + USER_DB + "' non trovato.");
+            System.err.println("Errore, file '" + file + "' non trovato.");
             ex.printStackTrace();
         } catch (IOException ex) {
-            System.err.println("Errore durante la lettura del file " + USER_DB);
+            System.err.println("Errore durante la lettura del file " + file);
             ex.printStackTrace();
         }
+        return 0;
     }
 
     /**
-     * Metodo che salva gli utenti memorizzati nella struttura users su un file JSON.
+     * Metodo che salva tutti gli utenti memorizzati nella struttura users (snapshot completo), scrivendo in parallelo
+     * un file JSON per ogni shard ed eliminando gli snapshot incrementali che diventano superflui.
+     * @return True se lo snapshot è stato scritto, false altrimenti
      */
-    private static void saveUsersToJSON() {
-        try (JsonWriter writer = new JsonWriter(new FileWriter(USER_DB))) {
-            int total_users = 0; // per scopi di stampa sulla CLI
-            writer.setIndent("\t"); // per avere indentazione nel file JSON prodotto
-            writer.beginArray(); // [
-            for (String username : users.keySet()) { // per tutte le chiavi della mappa users
-                User userObj = users.get(username);
-
-                writer.beginObject(); // {
-                writer.name("username").value(userObj.getUsername()); // scrivo coppie key-value nel file JSON
-                writer.name("password").value(userObj.getPassword());
-                writer.name("total_played_games").value(userObj.getTotal_played_games());
-                writer.name("total_games_won").value(userObj.getTotal_games_won());
-                writer.name("current_winstreak").value(userObj.getCurrent_winstreak());
-                writer.name("longest_winstreak").value(userObj.getLongest_winstreak());
-                writer.name("has_played").value(false); // per consentire agli utenti di poter giocare alla prossima attivazione del server
-                writer.name("guess_distribution");
-                writer.beginArray(); // [
-                for (int guess : userObj.getGuess_distribution()) {
-                    writer.value(guess);
+    private static boolean saveUsersToJSON() {
+        List<List<User>> partitions = new ArrayList<>();
+        for (int i = 0; i < USER_SHARDS; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (User user : users.values()) {
+            partitions.get(shardOf(user.getUsername())).add(user);
+        }
+
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < USER_SHARDS; i++) {
+            File shard = shardFile(i);
+            List<User> partition = partitions.get(i);
+            tasks.add(() -> writeUsersFile(shard, partition));
+        }
+        try {
+            for (Future<Integer> written : storePool.invokeAll(tasks)) {
+                if (written.get() < 0) { // gli shard già scritti restano validi: al caricamento vale la versione più recente di ogni utente
+                    return false;
                 }
-                writer.endArray(); // ]
-                writer.endObject(); // }
-                total_users++;
             }
-            writer.endArray(); // ]
-            System.out.println("[DEBUG] file " + USER_DB + " scritto con successo. (" + total_users + " utenti)");
+        } catch (InterruptedException | ExecutionException ex) {
+            System.err.println("Errore durante il salvataggio degli utenti.");
+            ex.printStackTrace();
+            return false;
+        }
+        // eventuali snapshot incrementali rimasti (crash prima della loro eliminazione) vengono ignorati al caricamento, perchè meno recenti
+        for (File delta : listDeltas()) {
+            delta.delete();
+        }
+        deltaCount = 0;
+        return true;
+    }
+
+    /**
+     * Metodo che salva su un nuovo snapshot incrementale (USER_DB.delta.N) i soli utenti modificati dall'ultimo snapshot,
+     * per cui il tempo di scrittura dipende dal numero di utenti modificati e non dal numero totale di utenti.
+     * @return True se lo snapshot è stato scritto, false altrimenti
+     */
+    private static boolean saveDirtyUsers() {
+        Set<User> dirty = new LinkedHashSet<>(); // un utente può essere in coda più volte se nel frattempo è stato scritto uno snapshot completo
+        User user;
+        while ((user = dirtyUsers.poll()) != null) {
+            dirty.add(user);
+        }
+        if (dirty.isEmpty()) {
+            return true;
+        }
+        if (writeUsersFile(new File(USER_DB + DELTA_SUFFIX + deltaCount), dirty) < 0) {
+            return false;
+        }
+        deltaCount++;
+        return true;
+    }
+
+    /**
+     * Metodo che scrive un file di utenti nel formato USER_STORE_FORMAT (vedi UserStore.write).
+     * UserStore segna come salvato ogni utente mentre lo copia: se la scrittura fallisce tutti gli utenti del file vengono
+     * segnati di nuovo come modificati, per cui restano da salvare al prossimo snapshot (incrementale o completo).
+     * @param file    Il file da scrivere
+     * @param toWrite Gli utenti da scrivere
+     * @return        Il numero di utenti scritti, -1 in caso di errore
+     */
+    private static int writeUsersFile(File file, Collection<User> toWrite) {
+        try {
+            int total_users = UserStore.write(file, toWrite, USER_STORE_FORMAT.equals("binary"));
+            System.out.println("[DEBUG] file " + file + " scritto con successo. (" + total_users + " utenti)");
+            return total_users;
         } catch (IOException ex) {
-            System.err.println("Errore nella scrittura del file " + USER_DB);
+            System.err.println("Errore nella scrittura del file " + file);
             ex.printStackTrace();
+            for (User user : toWrite) {
+                synchronized (user) {
+                    markDirty(user);
+                }
+            }
+            return -1;
+        }
+    }
+
+    // Restituisce gli snapshot incrementali presenti, in ordine di scrittura
+    private static List<File> listDeltas() {
+        List<File> deltas = new ArrayList<>();
+        for (int i = 0; new File(USER_DB + DELTA_SUFFIX + i).exists(); i++) {
+            deltas.add(new File(USER_DB + DELTA_SUFFIX + i));
+        }
+        return deltas;
+    }
+
+    // Segna un utente come modificato dall'ultimo snapshot (da invocare tenendo il lock dell'utente)
+    private static void markDirty(User user) {
+        if (user.setDirty()) { // l'utente non era già in attesa di essere salvato
+            dirtyUsers.add(user);
+        }
+    }
+
+    /**
+     * Metodo che riapplica agli utenti caricati dallo snapshot le modifiche registrate nel journal e apre il journal per le modifiche successive.
+     * Se il journal conteneva modifiche viene subito scritto un nuovo snapshot, in modo da ripartire da un journal vuoto.
+     * Gli utenti modificati dal ripristino vengono segnati come da salvare: se lo snapshot fallisce il journal viene mantenuto,
+     * e il primo snapshot incrementale successivo li contiene prima che la compattazione ne elimini il segmento.
+     * @throws IOException se non è possibile aprire il journal
+     */
+    public static void replayJournal() throws IOException {
+        long lastSeq = 0;
+        for (User user : users.values()) {
+            lastSeq = Math.max(lastSeq, user.getJournal_seq());
+        }
+
+        List<UserJournal.Entry> entries = UserJournal.readAll(USER_JOURNAL);
+        int applied = 0;
+        for (UserJournal.Entry entry : entries) {
+            lastSeq = Math.max(lastSeq, entry.seq);
+            User user = users.get(entry.username);
+            if (entry.type == UserJournal.REGISTER) {
+                if (user == null) {
+                    user = new User(entry.username, entry.password);
+                    user.setJournal_seq(entry.seq);
+                    users.put(entry.username, user);
+                    markDirty(user); // nessun altro thread accede agli utenti durante il ripristino
+                    applied++;
+                }
+                continue;
+            }
+            if (user == null || entry.seq <= user.getJournal_seq()) { // modifica già contenuta nello snapshot
+                continue;
+            }
+            if (entry.type == UserJournal.WIN) {
+                user.addWin((int) entry.value);
+            } else if (entry.type == UserJournal.LOSE) {
+                user.addLose();
+            } else if (entry.type == UserJournal.PLAYED) {
+                user.markPlayed(entry.value);
+            }
+            user.setJournal_seq(entry.seq);
+            markDirty(user);
+            applied++;
+        }
+        System.out.println("[DEBUG] Riapplicate " + applied + " modifiche dal journal " + USER_JOURNAL + ".");
+
+        if ((!entries.isEmpty() || !listDeltas().isEmpty()) && saveUsersToJSON()) { // riparto da un unico snapshot completo
+            UserJournal.deleteAll(USER_JOURNAL);
+        }
+        journal = new UserJournal(USER_JOURNAL, lastSeq + 1, JOURNAL_COMPACT_SIZE, () -> compactUsers(false));
+    }
+
+    /**
+     * Metodo che compatta il journal: le modifiche registrate fino a questo momento vengono incorporate in un nuovo snapshot
+     * e il segmento del journal che le contiene viene eliminato. Le modifiche concorrenti finiscono nel nuovo segmento del journal.
+     * Viene eseguito periodicamente (ogni SNAPSHOT_INTERVAL secondi) e quando il journal supera JOURNAL_COMPACT_SIZE, su thread
+     * diversi da quelli che gestiscono i client. Di norma viene scritto uno snapshot incrementale con i soli utenti modificati;
+     * dopo SNAPSHOT_MAX_DELTAS snapshot incrementali (o se richiesto) viene scritto uno snapshot completo che li sostituisce.
+     * @param full True per scrivere uno snapshot completo
+     */
+    public static synchronized void compactUsers(boolean full) {
+        try {
+            journal.rotate();
+        } catch (IOException ex) {
+            System.err.println("Errore nella rotazione del journal " + USER_JOURNAL);
+            ex.printStackTrace();
+            return;
+        }
+        full = full || deltaCount >= SNAPSHOT_MAX_DELTAS;
+        long start = System.nanoTime();
+        boolean saved = full ? saveUsersToJSON() : saveDirtyUsers();
+        ServerMetrics.recordSnapshot(full, System.nanoTime() - start);
+        if (saved) {
+            journal.deleteRotated();
+        }
+    }
+
+    /**
+     * Metodo che condivide il risultato dell'ultima partita di un utente autenticato (comando SHARE): la partita deve essere
+     * conclusa nel turno corrente e il risultato non ancora condiviso. Il risultato, codificato dal server al termine della
+     * partita (vedi ShareRecord), viene accodato alla ShareRelay; la richiesta arriva sulla connessione su cui l'utente ha fatto
+     * il login, per cui nessuno può condividere il risultato di un altro utente.
+     * @param user L'utente autenticato sulla connessione
+     * @return     "SUCCESS" se il risultato è stato accodato, "DUPLICATE" se era già stato condiviso, "ERROR" altrimenti
+     */
+    public static String shareLastGame(User user) {
+        ShareRecord game = user.getLast_game();
+        if (game == null || game.getEpoch() != currentRound.getEpoch() || shareRelay == null) { // nessuna partita conclusa nel turno corrente
+            ServerMetrics.shareRejected(false);
+            return "ERROR";
+        }
+        if (!user.markShared(game.getEpoch())) { // risultato già condiviso
+            ServerMetrics.shareRejected(true);
+            return "DUPLICATE";
         }
+        shareRelay.submit(game);
+        return "SUCCESS";
     }
 
     /**
-     * Aggiunge un nuovo utente alla struttura che memorizza gli utenti
+     * Metodo che controlla le credenziali con cui un client chiede di registrare un nuovo utente
      *
      * @param username Il nome utente del nuovo utente da memorizzare
      * @param password La password del nuovo utente da memorizzare
-     * @return         Una stringa che indica l'esito dell'operazione
+     * @return         "SUCCESS" se l'utente può essere registrato con addUser, altrimenti una stringa che indica l'errore
      */
-    public static String addUser(String username, String password) {
+    public static String checkCredentials(String username, String password) {
         if (password.equals("")) {
             return "EMPTY";
-        } else if (users.containsKey(username)) {
-            return "DUPLICATE";
         }
+        // username e password vengono scritti nel journal e negli snapshot con una lunghezza limitata
+        if (username.getBytes(StandardCharsets.UTF_8).length > User.MAX_FIELD_BYTES || password.getBytes(StandardCharsets.UTF_8).length > User.MAX_FIELD_BYTES) {
+            return "TOO_LONG";
+        }
+        return "SUCCESS";
+    }
 
+    /**
+     * Aggiunge un nuovo utente alla struttura che memorizza gli utenti (credenziali già controllate con checkCredentials).
+     * La registrazione va confermata al client solo quando la modifica restituita è su disco (vedi ClientSession).
+     *
+     * @param username Il nome utente del nuovo utente da memorizzare
+     * @param password La password del nuovo utente da memorizzare
+     * @return         La modifica registrata nel journal, o null se esiste già un utente con lo stesso username
+     */
+    public static UserJournal.Commit addUser(String username, String password) {
         User user = new User(username, password);
-        users.put(username, user);
-        return "SUCCESS";
+        UserJournal.Commit commit;
+        synchronized (user) { // le modifiche successive all'utente vengono registrate nel journal dopo la registrazione
+            if (users.putIfAbsent(username, user) != null) {
+                return null;
+            }
+            markDirty(user);
+            commit = journal.append(UserJournal.REGISTER, username, password, 0);
+            user.setJournal_seq(commit.getSeq());
+        }
+        return commit;
+    }
+
+    /**
+     * Metodo che attende che una modifica registrata nel journal sia su disco, da invocare senza tenere il lock dell'utente
+     * e solo da un thread dedicato a una connessione (un reactor usa invece UserJournal.Commit.whenDone)
+     * @param commit La modifica restituita da addUser, checkIfUserHasPlayed, addWin o addLose
+     * @return       True se la modifica è su disco, false se la sua scrittura è fallita
+     */
+    public static boolean awaitJournal(UserJournal.Commit commit) {
+        return journal.await(commit);
     }
 
     /**
@@ -311,28 +740,89 @@ public class WordleServerMain {
     }
 
     /**
-     * Metodo che controlla se un utente ha già giocato (cioè ha già provato a indovinare l'ultima parola estratta)
+     * Metodo che controlla se un utente ha già giocato (cioè ha già provato a indovinare la parola del turno indicato)
+     * e in caso contrario registra la sua partecipazione al turno
      * @param username L'username dell'utente di cui si vuole verificare la partecipazione al gioco
-     * @return         Una stringa: "ALREADY_PLAYED" se l'utente ha già giocato, "SUCCESS" altrimenti
+     * @param epoch    L'epoch del turno a cui l'utente vuole partecipare
+     * @return         La modifica registrata nel journal, o null se l'utente ha già giocato
      */
-    public static String checkIfUserHasPlayed(String username) {
+    public static UserJournal.Commit checkIfUserHasPlayed(String username, long epoch) {
         User user = users.get(username);
-        if (user.Has_played()) { // L'utente ha già giocato con l'ultima parola estratta
-            return "ALREADY_PLAYED";
-        } else {
-            // Aggiorno stato del giocatore, specificando che iniziando la partita ha giocato così l'ultima parola estratta
-            user.setHas_played();
-            updateUser(user);
-            return "SUCCESS";
+        // Il controllo e l'aggiornamento dello stato del giocatore avvengono in modo atomico (due richieste concorrenti non possono entrambe avere successo)
+        UserJournal.Commit commit;
+        synchronized (user) {
+            if (!user.markPlayed(epoch)) { // L'utente ha già giocato con l'ultima parola estratta
+                return null;
+            }
+            markDirty(user);
+            commit = journal.append(UserJournal.PLAYED, username, null, epoch);
+            user.setJournal_seq(commit.getSeq());
         }
+        return commit;
     }
-    
+
     /**
-     * Metodo che va a aggiornare i dati di un utente memorizzato
-     * @param user L'utente di cui si vogliono aggiornare i dati
+     * Metodo che registra la vittoria di una partita da parte di un utente
+     * @param user     L'utente che ha vinto
+     * @param numTries Il numero di tentativi impiegati per indovinare la secret word
+     * @return         La modifica registrata nel journal
      */
-    public static void updateUser(User user) {
-        users.replace(user.getUsername(), user);
+    public static UserJournal.Commit addWin(User user, int numTries) {
+        UserJournal.Commit commit;
+        synchronized (user) {
+            user.addWin(numTries);
+            markDirty(user);
+            commit = journal.append(UserJournal.WIN, user.getUsername(), null, numTries);
+            user.setJournal_seq(commit.getSeq());
+        }
+        return commit;
+    }
+
+    /**
+     * Metodo che registra la sconfitta in una partita da parte di un utente
+     * @param user L'utente che ha perso
+     * @return     La modifica registrata nel journal
+     */
+    public static UserJournal.Commit addLose(User user) {
+        UserJournal.Commit commit;
+        synchronized (user) {
+            user.addLose();
+            markDirty(user);
+            commit = journal.append(UserJournal.LOSE, user.getUsername(), null, 0);
+            user.setJournal_seq(commit.getSeq());
+        }
+        return commit;
+    }
+
+    /**
+     * Metodo che crea la socket su cui il server accetta le richieste di connessione.
+     * In modalità nio la ServerSocket è quella associata a una ServerSocketChannel, in modo che le connessioni accettate
+     * abbiano una SocketChannel da affidare ai reactor.
+     * @return La ServerSocket in ascolto sulla porta PORT
+     * @throws IOException se non è possibile aprire la socket
+     */
+    private static ServerSocket openWelcomeSocket() throws IOException {
+        if (SERVER_MODE.equals("nio")) {
+            ServerSocketChannel channel = ServerSocketChannel.open(); // in modalità bloccante: la accept viene fatta dal thread main
+            channel.bind(new InetSocketAddress(PORT));
+            return channel.socket();
+        }
+        return new ServerSocket(PORT);
+    }
+
+    /**
+     * Metodo che crea il pool che esegue un ClientHandler su un virtual thread per ogni connessione (modalità virtual).
+     * Il metodo Executors.newVirtualThreadPerTaskExecutor() esiste solo da Java 21, per cui viene cercato a runtime in modo
+     * che il progetto continui a compilare anche con JDK precedenti; se non disponibile si usa un thread per connessione.
+     * @return Il pool con cui eseguire i ClientHandler
+     */
+    private static ExecutorService newVirtualThreadPool() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            System.err.println("[SERVER] Virtual thread non disponibili in questa JVM (richiesto Java 21+), uso un thread per connessione.");
+            return Executors.newCachedThreadPool();
+        }
     }
 
     // Metodo main per testare le funzionalità del server WORDLE
@@ -340,16 +830,33 @@ public class WordleServerMain {
         try {
             readConfig(); // Lettura del file di configurazione del server
             loadUsersFromJSON(); // Caricamento degli utenti dal file JSON
+            replayJournal(); // Modifiche agli utenti successive all'ultimo snapshot
             loadVocabulary(); // Caricamento del vocabolario del gioco
+            loadWordState(); // Ripristino delle parole già estratte
+            ServerLog.start(LOG_FILE, LOG_BUFFER_SIZE, LOG_SAMPLE_INFO, LOG_SAMPLE_DEBUG); // Log asincrono dei client
         } catch (IOException ex) {
             System.err.println("Errore nella lettura del file di configurazione/database utenti/vocabolario.");
             ex.printStackTrace();
         }
 
-        try (ServerSocket welcomeSocket = new ServerSocket(PORT)) { // Definisco una socket per accettare le richieste di connessione da parte dei client
+        try (ServerSocket welcomeSocket = openWelcomeSocket()) { // Definisco una socket per accettare le richieste di connessione da parte dei client
             // welcomeSocket.setSoTimeout(TIMEOUT); // tempo di timeout, dopo cui verrà sollevata una SocketTimeoutException
-            System.out.println("[DEBUG] Server attivo, ascolto sulla porta " + PORT);
-            ExecutorService pool = Executors.newCachedThreadPool();
+            System.out.println("[DEBUG] Server attivo, ascolto sulla porta " + PORT + " (modalità " + SERVER_MODE + ")");
+            ExecutorService pool;
+            NioReactor[] reactors = null;
+            if (SERVER_MODE.equals("nio")) {
+                // pool con i reactor, ognuno dei quali gestisce con un Selector una parte delle connessioni
+                pool = Executors.newFixedThreadPool(NIO_REACTORS);
+                reactors = new NioReactor[NIO_REACTORS];
+                for (int i = 0; i < NIO_REACTORS; i++) {
+                    reactors[i] = new NioReactor();
+                    pool.execute(reactors[i]);
+                }
+            } else if (SERVER_MODE.equals("virtual")) {
+                pool = newVirtualThreadPool();
+            } else {
+                pool = Executors.newCachedThreadPool();
+            }
 
             // pool con task che propone periodicamente una nuova parola da indovinare
             ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
@@ -357,11 +864,23 @@ public class WordleServerMain {
                 pickNewWord();
             }, 0, WORD_UPDATE_DELAY, TimeUnit.MINUTES);
 
-            // pool con task che si occupa di gestire la comunicazione multicast
-            ExecutorService ms_pool = Executors.newFixedThreadPool(1);
-            ms_pool.submit(() -> {
-                handleSharing();
-            });
+            // thread che salva periodicamente gli utenti modificati, senza interrompere la gestione dei client
+            ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor();
+            snapshotter.scheduleWithFixedDelay(() -> {
+                compactUsers(false);
+            }, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.SECONDS);
+
+            // pool con il task che si occupa di inviare i risultati condivisi
+            ExecutorService ms_pool = Executors.newSingleThreadExecutor();
+            shareRelay = handleSharing(ms_pool);
+
+            // thread che risponde alle richieste dell'endpoint di amministrazione
+            ExecutorService admin_pool = Executors.newFixedThreadPool(1);
+            if (ADMIN_PORT > 0) {
+                admin_pool.submit(() -> {
+                    handleAdmin();
+                });
+            }
 
             // Thread che esegue task di shutdown (alternativa allo ShutdownHook, che tramite la console NetBeans appare non funzionare)
             Thread shutdownThread = new Thread() {
@@ -370,7 +889,8 @@ public class WordleServerMain {
                         if (signalInput.hasNext()) { // se viene digitato qualcosa nella CLI del server
                             if (signalInput.next().equals("t")) { // t come sinonimo di "t-erminate"
                                 // salvo gli utenti su file
-                                saveUsersToJSON();
+                                snapshotter.shutdown();
+                                compactUsers(true);
 
                                 // Avvio la procedura di terminazione del server.
                                 System.out.println("[SERVER] Avvio terminazione...");
@@ -385,7 +905,11 @@ public class WordleServerMain {
                                 // Faccio terminare il pool di thread.
                                 pool.shutdown();
                                 scheduler.shutdown();
-                                ms_pool.shutdown();
+                                ms_pool.shutdownNow(); // interrompe il thread di invio della relay
+                                if (shareRelay != null) {
+                                    shareRelay.close();
+                                }
+                                admin_pool.shutdownNow();
 
                                 try {
                                     if (!pool.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS)) {
@@ -411,6 +935,9 @@ public class WordleServerMain {
                                     ms_pool.shutdownNow();
                                 }
 
+                                journal.close(); // scrivo le eventuali modifiche successive allo snapshot, verranno riapplicate al prossimo avvio
+                                ServerLog.close(); // scrivo gli eventi di log ancora in coda
+
                                 System.out.println("[SERVER] Terminato.");
                                 System.exit(0);
                             }
@@ -421,9 +948,15 @@ public class WordleServerMain {
             shutdownThread.start(); // Il thread va a eseguire il task specificato dal metodo run
 
             while (true) { // gestisco la comunicazione con un client grazie alla connection socket restituita dalla accept
-                pool.execute(new ClientHandler(welcomeSocket.accept(), connectedUsers++));
+                Socket socket = welcomeSocket.accept();
+                int client_id = ServerMetrics.clientConnected();
+                if (reactors != null) { // modalità nio: affido la connessione ai reactor secondo una politica round-robin
+                    reactors[client_id % reactors.length].register(socket.getChannel(), client_id);
+                } else {
+                    pool.execute(new ClientHandler(socket, client_id));
+                }
             }
-        } catch (SocketException se) { } catch (IOException ex) {
+        } catch (SocketException | ClosedChannelException se) { } catch (IOException ex) {
             System.err.printf("[SERVER] Errore: %s\n", ex.getMessage());
             ex.printStackTrace();
         }